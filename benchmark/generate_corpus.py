@@ -0,0 +1,139 @@
+"""Generates the GIF corpus of the benchmarks into src/jmh/resources/corpus. Deterministic: rerunning it rewrites the
+same files, so it only needs to be run after changing it."""
+import struct, random, math, sys, os
+
+OUT = os.path.join(os.path.dirname(os.path.abspath(__file__)), 'src', 'jmh', 'resources', 'corpus')
+
+def lzw(indices, min_code):
+    clear = 1 << min_code; eoi = clear + 1
+    out = []; bits = 0; nbits = 0
+    def emit(code, size):
+        nonlocal bits, nbits
+        bits |= code << nbits; nbits += size
+        while nbits >= 8:
+            out.append(bits & 0xff); bits >>= 8; nbits -= 8
+    size = min_code + 1
+    table = {(i,): i for i in range(clear)}
+    nxt = eoi + 1
+    emit(clear, size)
+    w = ()
+    for k in indices:
+        wk = w + (k,)
+        if wk in table:
+            w = wk; continue
+        emit(table[w], size)
+        if nxt < 4096:
+            table[wk] = nxt; nxt += 1
+            if nxt > (1 << size) and size < 12:
+                size += 1
+        else:
+            emit(clear, size); table = {(i,): i for i in range(clear)}; nxt = eoi + 1; size = min_code + 1
+        w = (k,)
+    if w: emit(table[w], size)
+    emit(eoi, size)
+    if nbits: out.append(bits & 0xff)
+    data = bytes(out); res = bytearray([min_code])
+    for i in range(0, len(data), 255):
+        chunk = data[i:i+255]; res.append(len(chunk)); res += chunk
+    res.append(0)
+    return bytes(res)
+
+def palette_bytes(pal, size):
+    b = bytearray()
+    for i in range(size):
+        r,g,bb = pal[i] if i < len(pal) else (0,0,0)
+        b += bytes([r,g,bb])
+    return bytes(b)
+
+def tsize(n):
+    s = 1
+    while (2 << (s-1)) < n: s += 1
+    return s  # bits -> table has 2**s entries
+
+def write_gif(path, w, h, gpal, frames, loop=0, bg=0):
+    out = bytearray(b'GIF89a')
+    gbits = tsize(len(gpal)) if gpal else 1
+    packed = (0x80 | (gbits-1)) if gpal else 0
+    out += struct.pack('<HHBBB', w, h, packed | 0x70, bg, 0)
+    if gpal: out += palette_bytes(gpal, 1 << gbits)
+    if loop is not None:
+        out += b'\x21\xff\x0bNETSCAPE2.0\x03\x01' + struct.pack('<H', loop) + b'\x00'
+    out += b'\x21\xfe\x05hello\x00'
+    for f in frames:
+        disp = f.get('dispose', 1); trans = f.get('trans')
+        out += b'\x21\xf9\x04' + bytes([(disp << 2) | (1 if trans is not None else 0)]) + struct.pack('<H', f.get('delay', 10)) + bytes([trans or 0]) + b'\x00'
+        x,y,fw,fh = f['rect']
+        lpal = f.get('lpal'); inter = f.get('interlace', False)
+        p = 0
+        if lpal: lb = tsize(len(lpal)); p |= 0x80 | (lb-1)
+        if inter: p |= 0x40
+        out += b'\x2c' + struct.pack('<HHHHB', x, y, fw, fh, p)
+        if lpal: out += palette_bytes(lpal, 1 << lb)
+        px = f['pixels']
+        if inter:
+            rows = [px[r*fw:(r+1)*fw] for r in range(fh)]
+            order = list(range(0,fh,8))+list(range(4,fh,8))+list(range(2,fh,4))+list(range(1,fh,2))
+            px = [v for r in order for v in rows[r]]
+        nb = max(2, tsize(len(lpal or gpal)))
+        out += lzw(px, nb)
+    out += b'\x3b'
+    open(path, 'wb').write(out)
+
+rnd = random.Random(42)
+def grad_pal(n):
+    return [(int(255*i/(n-1)), int(255*abs(math.sin(i/9.0))), 255-int(255*i/(n-1))) for i in range(n)]
+
+# small emoji: 32x32, 8 frames, transparency, dispose 2
+def emoji():
+    pal = [(0,0,0),(255,220,0),(255,255,255),(200,0,0)]
+    frames = []
+    for k in range(8):
+        px = []
+        for y in range(32):
+            for x in range(32):
+                d = (x-16)**2 + (y-16)**2
+                r = 12 + (k % 4)
+                px.append(1 if d < r*r else 0)
+        frames.append(dict(rect=(0,0,32,32), pixels=px, trans=0, dispose=2, delay=8))
+    write_gif(os.path.join(OUT, 'emoji.gif'), 32, 32, pal, frames)
+
+# large photographic: 480x360, 256 colors, noisy gradient, 4 frames full, opaque
+def photo():
+    pal = grad_pal(256)
+    frames = []
+    for k in range(4):
+        px = [min(255, max(0, (x + y + k*13)//4 % 256 + rnd.randint(-6,6))) for y in range(360) for x in range(480)]
+        frames.append(dict(rect=(0,0,480,360), pixels=px, delay=10))
+    write_gif(os.path.join(OUT, 'photo.gif'), 480, 360, pal, frames)
+
+# interlaced: 200x150, local palettes, interlace
+def interlaced():
+    pal = grad_pal(64)
+    frames = []
+    for k in range(6):
+        lp = grad_pal(16)[::-1] if k % 2 else None
+        n = 16 if lp else 64
+        px = [((x//7) ^ (y//5) ^ k) % n for y in range(150) for x in range(200)]
+        frames.append(dict(rect=(0,0,200,150), pixels=px, interlace=True, lpal=lp, delay=12))
+    write_gif(os.path.join(OUT, 'interlaced.gif'), 200, 150, pal, frames)
+
+# heavy transparency: 160x160, sub-rect updates, transparent index, dispose 1/2/3 mix
+def transparent():
+    pal = grad_pal(32)
+    frames = [dict(rect=(0,0,160,160), pixels=[0 if (x//20+y//20)%2 else 5 for y in range(160) for x in range(160)], trans=0, dispose=1, delay=5)]
+    for k in range(1, 24):
+        x0 = (k*13) % 120; y0 = (k*7) % 120; w = 40; h = 30
+        px = [(0 if (x+y+k)%3==0 else (k%31)+1) for y in range(h) for x in range(w)]
+        frames.append(dict(rect=(x0,y0,w,h), pixels=px, trans=0, dispose=(k % 3)+1, delay=4))
+    write_gif(os.path.join(OUT, 'transparent.gif'), 160, 160, pal, frames)
+
+# many frames: 64x64, 300 frames, small updates
+def many():
+    pal = grad_pal(16)
+    frames = [dict(rect=(0,0,64,64), pixels=[0]*4096, delay=2)]
+    for k in range(1, 300):
+        x0 = k % 56; y0 = (k*3) % 56
+        frames.append(dict(rect=(x0,y0,8,8), pixels=[k % 16]*64, delay=(k % 5)*2))
+    write_gif(os.path.join(OUT, 'many_frames.gif'), 64, 64, pal, frames)
+
+emoji(); photo(); interlaced(); transparent(); many()
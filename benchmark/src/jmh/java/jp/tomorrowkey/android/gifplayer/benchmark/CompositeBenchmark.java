@@ -0,0 +1,114 @@
+package jp.tomorrowkey.android.gifplayer.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import jp.tomorrowkey.android.gifplayer.GifReader;
+import jp.tomorrowkey.android.gifplayer.GifSource;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compositing of decoded frames onto the canvas, including disposal, transparency, the change region and the
+ * reduction by the sample size. The LZW decoding is replaced by a copy of the color indices recorded on a first read,
+ * so the frames counter gives the frames composited per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CompositeBenchmark {
+
+	@Param({ "emoji.gif", "photo.gif", "interlaced.gif", "transparent.gif", "many_frames.gif" })
+	public String file;
+
+	/** frames are reduced by this factor */
+	@Param({ "1", "2" })
+	public int sampleSize;
+
+	private byte[] data;
+	private ReplayReader reader;
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		/** frames composited */
+		public long frames;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			frames = 0;
+		}
+	}
+
+	/**
+	 * Records the color indices and the data length of every frame on the first read, then reads them back instead
+	 * of decoding them.
+	 */
+	static class ReplayReader extends GifReader {
+		final ArrayList<byte[]> frames = new ArrayList<byte[]>();
+		final ArrayList<Integer> lengths = new ArrayList<Integer>();
+		boolean replaying;
+		int next;
+
+		@Override
+		public int read(GifSource source) {
+			next = 0;
+			return super.read(source);
+		}
+
+		@Override
+		protected void decodeBitmapData() {
+			if (replaying) {
+				try {
+					in.skip(lengths.get(next).intValue());
+				} catch (IOException e) {
+					status = STATUS_FORMAT_ERROR;
+				}
+				byte[] indices = frames.get(next++);
+				if ((pixels == null) || (pixels.length < indices.length)) {
+					pixels = new byte[indices.length];
+				}
+				System.arraycopy(indices, 0, pixels, 0, indices.length);
+				return;
+			}
+			int start = in.position();
+			super.decodeBitmapData();
+			lengths.add(Integer.valueOf(in.position() - start));
+			frames.add(Arrays.copyOf(pixels, iw * ih));
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		data = Corpus.load(file);
+		reader = new ReplayReader();
+		reader.read(GifSource.from(data));
+		reader.replaying = true;
+		if (sampleSize > 1) {
+			reader.setTargetSize(reader.getFrameWidth() / sampleSize, reader.getFrameHeight() / sampleSize);
+		}
+	}
+
+	@Benchmark
+	public int composite(Counters counters) {
+		int status = reader.read(GifSource.from(data));
+		counters.frames += reader.getFrameCount();
+		return status;
+	}
+}
@@ -0,0 +1,40 @@
+package jp.tomorrowkey.android.gifplayer.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The GIFs of the benchmarks, generated by generate_corpus.py:
+ * <ul>
+ * <li>emoji.gif: 32x32, 8 frames with transparency and dispose 2</li>
+ * <li>photo.gif: 480x360, 4 opaque frames of 256 noisy colors</li>
+ * <li>interlaced.gif: 200x150, 6 interlaced frames, half with local color tables</li>
+ * <li>transparent.gif: 160x160, 24 transparent sub-frames mixing dispose 1, 2 and 3</li>
+ * <li>many_frames.gif: 64x64, 300 small sub-frames</li>
+ * </ul>
+ */
+final class Corpus {
+
+	private Corpus() {
+	}
+
+	static byte[] load(String name) throws IOException {
+		final InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name);
+		if (in == null) {
+			throw new FileNotFoundException(name);
+		}
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buf = new byte[8192];
+			int count;
+			while ((count = in.read(buf)) > 0) {
+				out.write(buf, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
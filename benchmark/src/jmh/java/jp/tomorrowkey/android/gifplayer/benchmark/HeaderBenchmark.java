@@ -0,0 +1,55 @@
+package jp.tomorrowkey.android.gifplayer.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import jp.tomorrowkey.android.gifplayer.GifFrameIndex;
+import jp.tomorrowkey.android.gifplayer.GifReader;
+import jp.tomorrowkey.android.gifplayer.GifSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing without decoding pixel data: the header with its global color table, and the scan of all blocks that
+ * builds the frame index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HeaderBenchmark {
+
+	@Param({ "emoji.gif", "photo.gif", "interlaced.gif", "transparent.gif", "many_frames.gif" })
+	public String file;
+
+	private byte[] data;
+	private GifReader reader;
+
+	@Setup
+	public void setUp() throws IOException {
+		data = Corpus.load(file);
+		reader = new GifReader();
+	}
+
+	@Benchmark
+	public int readHeader() {
+		return reader.readHeader(GifSource.from(data));
+	}
+
+	@Benchmark
+	public GifFrameIndex readIndex() {
+		return reader.readIndex(GifSource.from(data));
+	}
+}
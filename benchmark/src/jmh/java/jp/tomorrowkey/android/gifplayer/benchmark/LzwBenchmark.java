@@ -0,0 +1,91 @@
+package jp.tomorrowkey.android.gifplayer.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import jp.tomorrowkey.android.gifplayer.GifReader;
+import jp.tomorrowkey.android.gifplayer.GifSource;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the LZW decoder, reading every frame without compositing it. Besides the reads per second, reports
+ * the compressed bytes (divide by 1e6 for MB/s) and the pixels decoded per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LzwBenchmark {
+
+	@Param({ "emoji.gif", "photo.gif", "interlaced.gif", "transparent.gif", "many_frames.gif" })
+	public String file;
+
+	private byte[] data;
+	private LzwReader reader;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		/** LZW data bytes decoded */
+		public long bytes;
+		/** pixels decoded */
+		public long pixels;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+			pixels = 0;
+		}
+	}
+
+	/**
+	 * Decodes the image data of every frame but leaves the canvas alone.
+	 */
+	static class LzwReader extends GifReader {
+		long bytes;
+		long pixels;
+
+		@Override
+		protected void decodeBitmapData() {
+			int start = in.position();
+			super.decodeBitmapData();
+			bytes += in.position() - start;
+			pixels += (long) iw * ih;
+		}
+
+		@Override
+		protected void setPixels() {
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		data = Corpus.load(file);
+		reader = new LzwReader();
+	}
+
+	@Benchmark
+	public int decode(Counters counters) {
+		reader.bytes = 0;
+		reader.pixels = 0;
+		int status = reader.read(GifSource.from(data));
+		counters.bytes += reader.bytes;
+		counters.pixels += reader.pixels;
+		return status;
+	}
+}
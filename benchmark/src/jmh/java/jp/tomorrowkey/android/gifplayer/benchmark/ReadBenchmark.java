@@ -0,0 +1,67 @@
+package jp.tomorrowkey.android.gifplayer.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import jp.tomorrowkey.android.gifplayer.ArgbFrameSink;
+import jp.tomorrowkey.android.gifplayer.FrameSink;
+import jp.tomorrowkey.android.gifplayer.GifReader;
+import jp.tomorrowkey.android.gifplayer.GifSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Whole reads of a GIF: parsing, LZW decoding and compositing of every frame. {@code read} hands the frames to a sink
+ * that only consumes them, {@code readToArgb} keeps a copy of each as {@link ArgbFrameSink} does, which is what the
+ * allocation rate of the gc profiler shows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReadBenchmark {
+
+	@Param({ "emoji.gif", "photo.gif", "interlaced.gif", "transparent.gif", "many_frames.gif" })
+	public String file;
+
+	private byte[] data;
+	private GifReader reader;
+
+	@Setup
+	public void setUp() throws IOException {
+		data = Corpus.load(file);
+		reader = new GifReader();
+	}
+
+	@Benchmark
+	public int read(final Blackhole blackhole) {
+		reader.setFrameSink(new FrameSink() {
+			@Override
+			public void onFrame(GifReader reader, int[] pixels, int delay) {
+				blackhole.consume(pixels);
+			}
+		});
+		return reader.read(GifSource.from(data));
+	}
+
+	@Benchmark
+	public ArgbFrameSink readToArgb() {
+		ArgbFrameSink sink = new ArgbFrameSink();
+		reader.setFrameSink(sink);
+		reader.read(GifSource.from(data));
+		return sink;
+	}
+}
@@ -0,0 +1,68 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps a copy of every frame read as ARGB pixels, e.g. to read GIFs on a plain JVM.
+ */
+public class ArgbFrameSink implements FrameSink {
+	private final ArrayList<int[]> frames = new ArrayList<int[]>();
+	private int[] delays = new int[16];
+	private int width;
+	private int height;
+
+	@Override
+	public void onFrame(GifReader reader, int[] pixels, int delay) {
+		width = reader.getFrameWidth();
+		height = reader.getFrameHeight();
+		int n = frames.size();
+		if (n == delays.length) {
+			delays = Arrays.copyOf(delays, n * 2);
+		}
+		delays[n] = delay;
+		frames.add(Arrays.copyOf(pixels, width * height));
+	}
+
+	/**
+	 * Drops the frames kept so far, e.g. before reading another GIF.
+	 */
+	public void clear() {
+		frames.clear();
+	}
+
+	public int getFrameCount() {
+		return frames.size();
+	}
+
+	/**
+	 * Gets the pixels of frame n, {@link #getWidth()} by {@link #getHeight()}.
+	 */
+	public int[] getFrame(int n) {
+		return frames.get(n);
+	}
+
+	/**
+	 * @return delay of frame n in milliseconds
+	 */
+	public int getDelay(int n) {
+		if (n < 0 || n >= frames.size()) {
+			throw new IndexOutOfBoundsException("frame " + n);
+		}
+		return delays[n];
+	}
+
+	/**
+	 * @return width of the frames
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return height of the frames
+	 */
+	public int getHeight() {
+		return height;
+	}
+}
@@ -0,0 +1,20 @@
+package jp.tomorrowkey.android.gifplayer;
+
+/**
+ * Receives the frames composited by a {@link GifReader}, e.g. {@link ArgbFrameSink} to keep them as ARGB pixels or
+ * {@link IndexedFrameSink} to keep them as palette indices. The Android library keeps them as bitmaps.
+ */
+public interface FrameSink {
+	/**
+	 * Called on the reading thread for each frame, in order.
+	 *
+	 * @param reader
+	 *          the reader, giving the frame size and opacity
+	 * @param pixels
+	 *          ARGB colors of the frame, {@link GifReader#getFrameWidth()} by {@link GifReader#getFrameHeight()}; the
+	 *          array is reused for the next frame, so copy what is kept
+	 * @param delay
+	 *          delay of the frame in milliseconds
+	 */
+	void onFrame(GifReader reader, int[] pixels, int delay);
+}
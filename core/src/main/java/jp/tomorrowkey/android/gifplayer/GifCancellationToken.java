@@ -0,0 +1,20 @@
+package jp.tomorrowkey.android.gifplayer;
+
+/**
+ * Signals a running {@link GifReader#read(GifSource)} to stop. The reader checks the token between content
+ * blocks and between the data sub-blocks of a frame, and ends with {@link GifReader#STATUS_CANCELLED}.
+ */
+public class GifCancellationToken {
+	private volatile boolean cancelled;
+
+	/**
+	 * Requests cancellation. Can be called from any thread, any number of times.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
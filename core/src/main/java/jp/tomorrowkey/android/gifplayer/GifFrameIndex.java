@@ -0,0 +1,225 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Byte offsets and graphic control values of every frame in a GIF file, collected without decoding pixel data.
+ *
+ * An index can be persisted with {@link #writeTo(OutputStream)} and handed back to
+ * {@link GifReader#setFrameIndex(GifFrameIndex)} so that reopening the same file needs no linear parse. An index is
+ * only used for data of the same length with the same screen descriptor and global color table, and every frame is
+ * checked against its image descriptor before being decoded, so the index of another file is not used to decode
+ * garbage.
+ */
+public class GifFrameIndex {
+	private static final int MAGIC = 0x47494649; // "GIFI"
+	private static final int VERSION = 2;
+	private static final int MIN_FRAME_LENGTH = 12; // image descriptor, LZW code size and block terminator
+
+	private int dataLength; // size of the indexed GIF data
+	private final int width; // logical screen width
+	private final int height; // logical screen height
+	private final int contentStart; // offset of the first content block
+	private final int checksum; // of the screen descriptor and global color table, see GifReader#headerChecksum()
+	private int frameCount;
+	private int[] offsets; // image separator offset of each frame
+	private int[] descriptors; // checksum of the image descriptor of each frame
+	private int[] gceOffsets; // graphic control extension offset, -1 if none
+	private int[] lctOffsets; // local color table offset, -1 if none
+	private int[] delays; // delay in milliseconds
+	private int[] controls; // dispose | transparency << 3 | transIndex << 8
+
+	GifFrameIndex(int width, int height, int contentStart, int checksum) {
+		this(0, width, height, contentStart, checksum, 0, new int[16], new int[16], new int[16], new int[16],
+				new int[16], new int[16]);
+	}
+
+	private GifFrameIndex(int dataLength, int width, int height, int contentStart, int checksum, int frameCount,
+			int[] offsets, int[] descriptors, int[] gceOffsets, int[] lctOffsets, int[] delays, int[] controls) {
+		this.dataLength = dataLength;
+		this.width = width;
+		this.height = height;
+		this.contentStart = contentStart;
+		this.checksum = checksum;
+		this.frameCount = frameCount;
+		this.offsets = offsets;
+		this.descriptors = descriptors;
+		this.gceOffsets = gceOffsets;
+		this.lctOffsets = lctOffsets;
+		this.delays = delays;
+		this.controls = controls;
+	}
+
+	void add(int offset, int descriptor, int gceOffset, int lctOffset, int delay, int dispose, boolean transparency,
+			int transIndex) {
+		if (frameCount == offsets.length) {
+			int capacity = frameCount * 2;
+			offsets = Arrays.copyOf(offsets, capacity);
+			descriptors = Arrays.copyOf(descriptors, capacity);
+			gceOffsets = Arrays.copyOf(gceOffsets, capacity);
+			lctOffsets = Arrays.copyOf(lctOffsets, capacity);
+			delays = Arrays.copyOf(delays, capacity);
+			controls = Arrays.copyOf(controls, capacity);
+		}
+		offsets[frameCount] = offset;
+		descriptors[frameCount] = descriptor;
+		gceOffsets[frameCount] = gceOffset;
+		lctOffsets[frameCount] = lctOffset;
+		delays[frameCount] = delay;
+		controls[frameCount] = dispose | (transparency ? 1 << 3 : 0) | (transIndex << 8);
+		frameCount++;
+	}
+
+	void setDataLength(int dataLength) {
+		this.dataLength = dataLength;
+	}
+
+	/**
+	 * Returns true if this index was built from data of the given size, screen dimensions and header checksum.
+	 */
+	boolean matches(int dataLength, int width, int height, int checksum) {
+		return this.dataLength == dataLength && this.width == width && this.height == height
+				&& this.checksum == checksum;
+	}
+
+	/**
+	 * Gets the checksum of an image descriptor compared by {@link #getDescriptor(int)}.
+	 */
+	static int descriptorOf(int x, int y, int width, int height, int packed) {
+		return (((x * 31 + y) * 31 + width) * 31 + height) * 31 + packed;
+	}
+
+	/**
+	 * @return checksum of the image descriptor of frame n
+	 */
+	int getDescriptor(int n) {
+		return descriptors[n];
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getContentStart() {
+		return contentStart;
+	}
+
+	/**
+	 * @return offset of the image separator (0x2C) of frame n
+	 */
+	public int getOffset(int n) {
+		return offsets[n];
+	}
+
+	/**
+	 * @return offset of the graphic control extension of frame n, or -1 if the frame has none
+	 */
+	public int getControlOffset(int n) {
+		return gceOffsets[n];
+	}
+
+	/**
+	 * @return offset of the local color table of frame n, or -1 if the frame uses the global one
+	 */
+	public int getColorTableOffset(int n) {
+		return lctOffsets[n];
+	}
+
+	/**
+	 * @return delay of frame n in milliseconds
+	 */
+	public int getDelay(int n) {
+		return delays[n];
+	}
+
+	/**
+	 * @return disposal method of frame n (1=leave in place; 2=restore to bg; 3=restore to prev)
+	 */
+	public int getDispose(int n) {
+		return controls[n] & 0x07;
+	}
+
+	public boolean hasTransparency(int n) {
+		return (controls[n] & (1 << 3)) != 0;
+	}
+
+	public int getTransparentIndex(int n) {
+		return (controls[n] >> 8) & 0xff;
+	}
+
+	/**
+	 * Writes this index in a compact binary form readable by {@link #readFrom(InputStream)}.
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(dataLength);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(contentStart);
+		out.writeInt(checksum);
+		out.writeInt(frameCount);
+		for (int i = 0; i < frameCount; i++) {
+			out.writeInt(offsets[i]);
+			out.writeInt(descriptors[i]);
+			out.writeInt(gceOffsets[i]);
+			out.writeInt(lctOffsets[i]);
+			out.writeInt(delays[i]);
+			out.writeInt(controls[i]);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads an index written by {@link #writeTo(OutputStream)}.
+	 *
+	 * @throws IOException
+	 *           if the data is not a valid frame index of a supported version
+	 */
+	public static GifFrameIndex readFrom(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("not a GIF frame index");
+		}
+		int dataLength = in.readInt();
+		int width = in.readInt();
+		int height = in.readInt();
+		int contentStart = in.readInt();
+		int checksum = in.readInt();
+		int frameCount = in.readInt();
+		if (frameCount < 0 || dataLength < 0 || frameCount > dataLength / MIN_FRAME_LENGTH) {
+			// a GIF of dataLength bytes cannot hold more frames
+			throw new IOException("invalid frame count: " + frameCount);
+		}
+		int[] offsets = new int[frameCount];
+		int[] descriptors = new int[frameCount];
+		int[] gceOffsets = new int[frameCount];
+		int[] lctOffsets = new int[frameCount];
+		int[] delays = new int[frameCount];
+		int[] controls = new int[frameCount];
+		for (int i = 0; i < frameCount; i++) {
+			offsets[i] = in.readInt();
+			descriptors[i] = in.readInt();
+			gceOffsets[i] = in.readInt();
+			lctOffsets[i] = in.readInt();
+			delays[i] = in.readInt();
+			controls[i] = in.readInt();
+		}
+		return new GifFrameIndex(dataLength, width, height, contentStart, checksum, frameCount, offsets, descriptors,
+				gceOffsets, lctOffsets, delays, controls);
+	}
+}
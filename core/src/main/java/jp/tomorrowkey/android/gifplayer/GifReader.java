@@ -0,0 +1,1269 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reads GIF data: parses the blocks, decodes the LZW image data and composites every frame onto the logical screen,
+ * handing each composited frame to a {@link FrameSink}. Plain Java, so GIFs can be read and profiled on any JVM.
+ *
+ * A reader is not thread safe and reads one GIF at a time. Its buffers are reused from one read to the next.
+ */
+public class GifReader {
+	/**
+	 * File read status: No errors.
+	 */
+	public static final int STATUS_OK = 0;
+	/**
+	 * File read status: Error decoding file (may be partially decoded)
+	 */
+	public static final int STATUS_FORMAT_ERROR = 1;
+	/**
+	 * File read status: Unable to open source.
+	 */
+	public static final int STATUS_OPEN_ERROR = 2;
+	/**
+	 * File read status: Cancelled through the cancellation token (partially decoded).
+	 */
+	public static final int STATUS_CANCELLED = 3;
+	/**
+	 * Display duration of frames without a positive delay, in milliseconds.
+	 */
+	public static final int SAFE_DELAY = 100;
+	/** max decoder pixel stack size */
+	protected static final int MAX_STACK_SIZE = 4096;
+	protected GifSource in;
+	protected int status;
+	protected int width; // full image width
+	protected int height; // full image height
+	protected boolean gctFlag; // global color table used
+	protected int gctSize; // size of global color table
+	protected int loopCount = 1; // iterations; 0 = repeat forever
+	protected int[] gct; // global color table
+	protected int[] lct; // local color table
+	protected int[] act; // active color table
+	protected int bgIndex; // background color index
+	protected int bgColor; // background color
+	protected int lastBgColor; // previous bg color
+	protected int pixelAspect; // pixel aspect ratio
+	protected boolean lctFlag; // local color table flag
+	protected boolean interlace; // interlace flag
+	protected int lctSize; // local color table size
+	protected int ix, iy, iw, ih; // current image rectangle
+	protected int lrx, lry, lrw, lrh;
+	protected int[] canvas; // composited pixels of the current frame, reused for every frame
+	protected int[] restoreCanvas; // pixels to restore after a frame with dispose 3
+	protected int[] saveCanvas; // spare buffer for the next restoreCanvas
+	protected int rrx, rry, rrr, rrb; // region held by restoreCanvas (left, top, right, bottom)
+	protected int crx, cry, crr, crb; // region of the canvas changed from the previous frame (left, top, right, bottom)
+	protected boolean canvasOpaque; // no canvas pixel is transparent
+	protected boolean restoreOpaque; // no restoreCanvas pixel is transparent
+	protected boolean saveOpaque;
+	protected int targetWidth, targetHeight; // size the frames are drawn at, 0 if unknown
+	protected int sampleSize = 1; // frames are reduced by this factor
+	protected int frameWidth, frameHeight; // size of the frames handed to the sink
+	protected int[] sampledCanvas; // canvas reduced by sampleSize
+	protected byte[] block = new byte[256]; // current data block
+	protected int blockSize = 0; // block size last graphic control extension info
+	protected int dispose = 0; // 0=no action; 1=leave in place; 2=restore to bg; 3=restore to prev
+	protected int lastDispose = 0;
+	protected boolean transparency = false; // use transparent color
+	protected int delay = 0; // delay in milliseconds
+	protected int transIndex; // transparent color index
+	// LZW decoder working arrays
+	protected short[] prefix;
+	protected byte[] suffix;
+	protected byte[] firstPixel; // first pixel of the string of each code
+	protected short[] stringLength; // length of the string of each code
+	protected byte[] pixelStack;
+	protected byte[] pixels; // color indices of the current frame, rows top to bottom
+	protected int[] lines; // display row of each row of an interlaced frame, in data order
+	protected int frameCount;
+	protected int frameLimit; // frames after which the read pauses, 0 for no limit
+	protected boolean paused; // the read stopped at frameLimit, with its source and buffers kept for resume()
+	protected FrameSink frameSink; // receives the composited frames
+	// frames decoded one at a time from the frame index
+	protected boolean streaming; // frames are decoded from frameIndex on demand instead of read in order
+	protected boolean scanning; // indexing frames without decoding pixels
+	protected GifFrameIndex frameIndex; // frame offsets, built by scanning or supplied by the caller
+	protected int blockOffset; // offset of the content block being read
+	protected int gceOffset = -1; // offset of the current graphic control extension
+	protected int streamIndex = -1; // index of the last frame decoded from data
+	protected GifCancellationToken cancellationToken; // stops the running read when cancelled
+
+	/**
+	 * Sets the sink receiving the frames of the next reads.
+	 */
+	public void setFrameSink(FrameSink frameSink) {
+		this.frameSink = frameSink;
+	}
+
+	public FrameSink getFrameSink() {
+		return frameSink;
+	}
+
+	/**
+	 * Sets a token that stops the next read early when cancelled. The token only applies to that read, including its
+	 * {@link #resume()}. A token set while the read is paused replaces it for the rest of the read.
+	 */
+	public void setCancellationToken(GifCancellationToken token) {
+		cancellationToken = token;
+	}
+
+	/**
+	 * Returns true and sets {@link #STATUS_CANCELLED} if the read has been cancelled.
+	 */
+	protected boolean checkCancelled() {
+		if (cancellationToken != null && cancellationToken.isCancelled()) {
+			status = STATUS_CANCELLED;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the size the frames are going to be drawn at. Frames are decoded at the logical screen size reduced by the
+	 * largest integer factor that keeps them at least this large, averaging the pixels of each reduced block. Zero or
+	 * negative values leave the frames at full size. Takes effect from the next read.
+	 */
+	public void setTargetSize(int targetWidth, int targetHeight) {
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+	}
+
+	/**
+	 * Gets the factor the frames of a width by height logical screen are reduced by when read with the given target
+	 * size (see {@link #setTargetSize(int, int)}). Reads with the same factor give the same frames.
+	 */
+	public static int sampleSizeOf(int width, int height, int targetWidth, int targetHeight) {
+		if ((targetWidth <= 0) || (targetHeight <= 0)) {
+			return 1;
+		}
+		return Math.max(1, Math.min(width / targetWidth, height / targetHeight));
+	}
+
+	/**
+	 * Gets the factor the frames are reduced by. The frames are {@link #getFrameWidth()} by
+	 * {@link #getFrameHeight()} pixels and cover the whole logical screen when drawn at its size.
+	 */
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	public int getFrameWidth() {
+		return frameWidth;
+	}
+
+	public int getFrameHeight() {
+		return frameHeight;
+	}
+
+	/**
+	 * Gets the number of frames read from file.
+	 * 
+	 * @return frame count
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Gets the "Netscape" iteration count, if any. A count of 0 means repeat indefinitiely.
+	 * 
+	 * @return iteration count if one was specified, else 1.
+	 */
+	public int getLoopCount() {
+		return loopCount;
+	}
+
+	/**
+	 * Tells whether the frame just handed to the sink has no transparent pixel. Tracked cheaply along the disposal of
+	 * the frames, so it may be false for a frame that happens to be opaque.
+	 */
+	public boolean isFrameOpaque() {
+		return canvasOpaque;
+	}
+
+	/**
+	 * Supplies a frame index saved from an earlier read of the same data, so that streaming playback can skip the
+	 * scan. An index that does not match the data is ignored.
+	 */
+	public void setFrameIndex(GifFrameIndex frameIndex) {
+		this.frameIndex = frameIndex;
+	}
+
+	/**
+	 * Gets the frame index built by {@link #readIndex(GifSource)} or a streaming {@link #read(GifSource)}.
+	 * 
+	 * @return frame index, or null if none was built
+	 */
+	public GifFrameIndex getFrameIndex() {
+		return frameIndex;
+	}
+
+	/**
+	 * Composites the current image data onto the canvas (and previous frames as specified by their disposition codes).
+	 */
+	protected void setPixels() {
+		// composite into the persistent canvas
+		int npix = width * height;
+		if ((canvas == null) || (canvas.length < npix)) {
+			canvas = new int[npix];
+		}
+		int[] dest = canvas;
+		boolean covering = (ix == 0) && (iy == 0) && (iw >= width) && (ih >= height);
+		// region touched by last image's dispose code; only it and this frame's rect change
+		int dl = 0, dt = 0, dr = 0, db = 0;
+		if (covering && !transparency) {
+			// this frame covers everything; nothing to dispose
+		} else if (lastDispose == 0) {
+			// nothing to keep from last image
+			dr = width;
+			db = height;
+		} else if (lastDispose == 2) {
+			dl = lrx;
+			dt = lry;
+			dr = Math.min(lrx + lrw, width);
+			db = Math.min(lry + lrh, height);
+		} else if (lastDispose == 3) {
+			dl = rrx;
+			dt = rry;
+			dr = rrr;
+			db = rrb;
+		}
+		boolean disposing = (dr > dl) && (db > dt);
+		if (dispose == 3) {
+			// save the region this frame changes, to be restored after it
+			int sl = ix;
+			int st = iy;
+			int sr = Math.min(ix + iw, width);
+			int sb = Math.min(iy + ih, height);
+			if (disposing) {
+				sl = Math.min(sl, dl);
+				st = Math.min(st, dt);
+				sr = Math.max(sr, dr);
+				sb = Math.max(sb, db);
+			}
+			if ((saveCanvas == null) || (saveCanvas.length < npix)) {
+				saveCanvas = new int[npix];
+			}
+			copyRect(dest, saveCanvas, sl, st, sr, sb);
+			saveOpaque = canvasOpaque;
+			rrx = sl;
+			rry = st;
+			rrr = sr;
+			rrb = sb;
+		}
+		// fill in starting image contents based on last image's dispose code
+		if (disposing) {
+			if (lastDispose == 0) {
+				Arrays.fill(dest, 0, npix, 0);
+				canvasOpaque = false;
+			} else if (lastDispose == 2) {
+				// fill last image rect area with background color
+				int c = 0;
+				if (!transparency) {
+					c = lastBgColor;
+				}
+				for (int y = dt; y < db; y++) {
+					Arrays.fill(dest, y * width + dl, y * width + dr, c);
+				}
+				canvasOpaque &= (c >>> 24) == 0xff;
+			} else if (lastDispose == 3) {
+				// restore image before last
+				copyRect(restoreCanvas, dest, dl, dt, dr, db);
+				canvasOpaque &= restoreOpaque;
+			}
+		}
+		if (dispose == 3) {
+			int[] saved = saveCanvas;
+			saveCanvas = restoreCanvas;
+			restoreCanvas = saved;
+			restoreOpaque = saveOpaque;
+		}
+		// copy each source line to the appropriate place in the destination; interlaced rows are already in order
+		for (int i = 0; i < ih; i++) {
+			int line = i + iy;
+			if (line < height) {
+				int k = line * width;
+				int dx = k + ix; // start of line in dest
+				int dlim = dx + iw; // end of dest line
+				if ((k + width) < dlim) {
+					dlim = k + width; // past dest edge
+				}
+				int sx = i * iw; // start of line in source
+				while (dx < dlim) {
+					// map color and insert in destination
+					int index = ((int) pixels[sx++]) & 0xff;
+					int c = act[index];
+					if (c != 0) {
+						dest[dx] = c;
+					}
+					dx++;
+				}
+			}
+		}
+		if (!canvasOpaque && covering && isOpacityNeeded()) {
+			// drawn pixels are opaque, but out of range color indices leave the canvas as it was
+			canvasOpaque = isOpaque(dest, npix);
+		}
+		if (sampleSize > 1) {
+			// reduce the changed region only
+			int fr = Math.min(ix + iw, width);
+			int fb = Math.min(iy + ih, height);
+			if (disposing) {
+				sampleRect(Math.min(ix, dl), Math.min(iy, dt), Math.max(fr, dr), Math.max(fb, db));
+			} else {
+				sampleRect(ix, iy, fr, fb);
+			}
+		}
+		// region changed from the previous frame
+		crx = Math.min(ix, width);
+		cry = Math.min(iy, height);
+		crr = Math.min(ix + iw, width);
+		crb = Math.min(iy + ih, height);
+		if (disposing) {
+			crx = Math.min(crx, dl);
+			cry = Math.min(cry, dt);
+			crr = Math.max(crr, dr);
+			crb = Math.max(crb, db);
+		}
+	}
+
+	/**
+	 * Tells whether {@link #isFrameOpaque()} is used. If not, a frame covering the whole screen is not scanned for
+	 * transparent pixels.
+	 */
+	protected boolean isOpacityNeeded() {
+		return true;
+	}
+
+	/**
+	 * Gets the pixels of the current frame, frameWidth by frameHeight.
+	 */
+	protected int[] getFramePixels() {
+		return sampleSize > 1 ? sampledCanvas : canvas;
+	}
+
+	/**
+	 * Reduces a region of the canvas into sampledCanvas, averaging each sampleSize square block weighted by alpha.
+	 */
+	private void sampleRect(int left, int top, int right, int bottom) {
+		int s = sampleSize;
+		int n = frameWidth * frameHeight;
+		if ((sampledCanvas == null) || (sampledCanvas.length < n)) {
+			sampledCanvas = new int[n];
+		}
+		int[] src = canvas;
+		int fr = Math.min((right + s - 1) / s, frameWidth);
+		int fb = Math.min((bottom + s - 1) / s, frameHeight);
+		for (int fy = top / s; fy < fb; fy++) {
+			int y0 = fy * s;
+			int y1 = Math.min(y0 + s, height);
+			for (int fx = left / s; fx < fr; fx++) {
+				int x0 = fx * s;
+				int x1 = Math.min(x0 + s, width);
+				long a = 0, r = 0, g = 0, b = 0;
+				for (int y = y0; y < y1; y++) {
+					for (int i = y * width + x0, end = y * width + x1; i < end; i++) {
+						int c = src[i];
+						int ca = c >>> 24;
+						a += ca;
+						r += ((c >> 16) & 0xff) * ca;
+						g += ((c >> 8) & 0xff) * ca;
+						b += (c & 0xff) * ca;
+					}
+				}
+				int c = 0;
+				if (a != 0) {
+					int count = (y1 - y0) * (x1 - x0);
+					c = (int) (((a / count) << 24) | ((r / a) << 16) | ((g / a) << 8) | (b / a));
+				}
+				sampledCanvas[fy * frameWidth + fx] = c;
+			}
+		}
+	}
+
+	private static boolean isOpaque(int[] pixels, int length) {
+		for (int i = 0; i < length; i++) {
+			if ((pixels[i] >>> 24) != 0xff) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies a rectangle between canvas-sized arrays.
+	 */
+	private void copyRect(int[] src, int[] dst, int left, int top, int right, int bottom) {
+		int w = right - left;
+		if (w <= 0) {
+			return;
+		}
+		for (int y = top; y < bottom; y++) {
+			int n = y * width + left;
+			System.arraycopy(src, n, dst, n, w);
+		}
+	}
+
+	/**
+	 * Decodes frame n of the frame index into the sink. Frames are composited onto the previous ones, so n must be the
+	 * frame after the last one decoded, or 0 after {@link #rewind()}. If the data at the indexed offset is not the
+	 * image of frame n, nothing is decoded and the status is {@link #STATUS_FORMAT_ERROR}.
+	 */
+	protected void decodeFrame(int n) {
+		status = STATUS_OK;
+		streamIndex = n;
+		seek(frameIndex.getOffset(n));
+		if (read() != 0x2C) { // image separator
+			status = STATUS_FORMAT_ERROR; // the index was not built from this data
+			return;
+		}
+		int packed = readImageDescriptor();
+		if (err() || (GifFrameIndex.descriptorOf(ix, iy, iw, ih, packed) != frameIndex.getDescriptor(n))) {
+			status = STATUS_FORMAT_ERROR;
+			return;
+		}
+		dispose = frameIndex.getDispose(n);
+		transparency = frameIndex.hasTransparency(n);
+		transIndex = frameIndex.getTransparentIndex(n);
+		delay = frameIndex.getDelay(n);
+		readImage(packed);
+	}
+
+	/**
+	 * Moves the input to the given offset of the streaming data.
+	 */
+	protected void seek(int offset) {
+		try {
+			in.seek(offset);
+		} catch (IOException e) {
+			status = STATUS_FORMAT_ERROR;
+		}
+	}
+
+	/**
+	 * Moves the streaming cursor back to the first frame.
+	 */
+	protected void rewind() {
+		streamIndex = -1;
+		dispose = 0;
+		lastDispose = 0;
+		transparency = false;
+		delay = 0;
+		if (canvas != null) {
+			Arrays.fill(canvas, 0);
+		}
+		if (sampledCanvas != null) {
+			Arrays.fill(sampledCanvas, 0);
+		}
+		canvasOpaque = false;
+		lct = null;
+		if (gct != null) {
+			bgColor = gct[bgIndex];
+		}
+	}
+
+	/**
+	 * Reads GIF image from stream
+	 * 
+	 * @param is
+	 *          containing GIF file.
+	 * @return read status code (0 = no errors)
+	 */
+	public int read(InputStream is) {
+		return read(is != null ? GifSource.from(is) : null);
+	}
+
+	/**
+	 * Reads GIF image from source
+	 * 
+	 * @param source
+	 *          containing GIF file.
+	 * @return read status code (0 = no errors)
+	 */
+	public int read(GifSource source) {
+		init();
+		try {
+			if (source != null) {
+				readSource(source);
+			} else {
+				status = STATUS_OPEN_ERROR;
+			}
+		} finally {
+			if (!paused) {
+				endRead();
+				try {
+					source.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Reads GIF image from source up to the end of its first frame, and pauses there. The source and the state of the
+	 * read are kept, so that {@link #resume()} goes on with the second frame without reading the first one again. A
+	 * GIF that cannot be read ends the read at once, as {@link #read(GifSource)} does. Streaming decoders only read
+	 * the first frame anyway, and do not pause.
+	 * 
+	 * @param source
+	 *          containing GIF file.
+	 * @return read status code (0 = no errors)
+	 */
+	public int readFirstFrame(GifSource source) {
+		frameLimit = 1;
+		try {
+			return read(source);
+		} finally {
+			frameLimit = 0;
+		}
+	}
+
+	/**
+	 * @return true if the read was paused by {@link #readFirstFrame(GifSource)} and neither resumed nor aborted yet
+	 */
+	public boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * Reads the rest of a paused read, and ends it.
+	 * 
+	 * @return read status code (0 = no errors)
+	 */
+	public int resume() {
+		if (!paused) {
+			return status;
+		}
+		paused = false;
+		try {
+			readContents();
+		} finally {
+			endPausedRead();
+		}
+		return status;
+	}
+
+	/**
+	 * Ends a paused read without reading the rest, e.g. when its frames are dropped, with {@link #STATUS_CANCELLED}.
+	 */
+	public void abortRead() {
+		if (!paused) {
+			return;
+		}
+		paused = false;
+		status = STATUS_CANCELLED;
+		endPausedRead();
+	}
+
+	private void endPausedRead() {
+		endRead();
+		try {
+			in.close();
+		} catch (Exception e) {
+		}
+	}
+
+	/**
+	 * Reads the frames of source into the sink.
+	 */
+	protected void readSource(GifSource source) {
+		in = source;
+		readHeader();
+		if (!err()) {
+			readContents();
+			if (frameCount < 0) {
+				status = STATUS_FORMAT_ERROR;
+			}
+		}
+	}
+
+	/**
+	 * Ends a read, successfully or not, before the source is closed.
+	 */
+	protected void endRead() {
+		cancellationToken = null;
+	}
+
+	/**
+	 * Drops the working buffers of the reader: the canvases, the LZW tables and the pixels of the last frame, several
+	 * times the size of the logical screen in all. The next read allocates them again.
+	 */
+	protected void releaseBuffers() {
+		canvas = null;
+		restoreCanvas = null;
+		saveCanvas = null;
+		sampledCanvas = null;
+		pixels = null;
+		lines = null;
+		prefix = null;
+		suffix = null;
+		firstPixel = null;
+		stringLength = null;
+		pixelStack = null;
+	}
+
+	/**
+	 * Reads GIF structure from stream without decoding any pixel data.
+	 * 
+	 * @param is
+	 *          containing GIF file.
+	 * @return index of the frames, or null if the header could not be read.
+	 */
+	public GifFrameIndex readIndex(InputStream is) {
+		return readIndex(is != null ? GifSource.from(is) : null);
+	}
+
+	/**
+	 * Reads GIF structure from source without decoding any pixel data.
+	 * 
+	 * @param source
+	 *          containing GIF file.
+	 * @return index of the frames, or null if the header could not be read.
+	 */
+	public GifFrameIndex readIndex(GifSource source) {
+		init();
+		frameIndex = null;
+		if (source != null) {
+			in = source;
+			readHeader();
+			if (!err()) {
+				readIndexContents();
+				int length = source.length();
+				if (length < 0) {
+					try {
+						source.skip(Integer.MAX_VALUE); // count trailing bytes into the data length
+					} catch (IOException e) {
+					}
+					length = source.position();
+				}
+				frameIndex.setDataLength(length);
+			}
+		} else {
+			status = STATUS_OPEN_ERROR;
+		}
+		try {
+			source.close();
+		} catch (Exception e) {
+		}
+		return frameIndex;
+	}
+
+	/**
+	 * Reads only the header and the logical screen descriptor of a GIF, enough to know its size. Reads no frame.
+	 * 
+	 * @param source
+	 *          containing GIF file.
+	 * @return read status code (0 = no errors)
+	 */
+	public int readHeader(GifSource source) {
+		init();
+		if (source != null) {
+			in = source;
+			readHeader();
+		} else {
+			status = STATUS_OPEN_ERROR;
+		}
+		try {
+			source.close();
+		} catch (Exception e) {
+		}
+		return status;
+	}
+
+	/**
+	 * Builds the frame index from the content blocks following the header.
+	 */
+	protected void readIndexContents() {
+		frameIndex = new GifFrameIndex(width, height, in.position(), headerChecksum());
+		scanning = true;
+		readContents();
+		scanning = false;
+		frameCount = frameIndex.getFrameCount();
+	}
+
+	/**
+	 * Decodes LZW image data into pixel array. Adapted from John Cristy's BitmapMagick.
+	 *
+	 * The codes of each data sub-block are taken in one pass, and the string of every code is written straight into
+	 * pixels, back to front along its prefix chain, using the string length kept with each table entry. Rows of an
+	 * interlaced image are written in display order, so pixels always holds the rows top to bottom.
+	 */
+	protected void decodeBitmapData() {
+		int nullCode = -1;
+		int npix = iw * ih;
+		if ((pixels == null) || (pixels.length < npix)) {
+			pixels = new byte[npix]; // allocate new pixel array
+		}
+		if (prefix == null) {
+			prefix = new short[MAX_STACK_SIZE];
+		}
+		if (suffix == null) {
+			suffix = new byte[MAX_STACK_SIZE];
+		}
+		if (firstPixel == null) {
+			firstPixel = new byte[MAX_STACK_SIZE];
+		}
+		if (stringLength == null) {
+			stringLength = new short[MAX_STACK_SIZE];
+		}
+		if (pixelStack == null) {
+			pixelStack = new byte[MAX_STACK_SIZE + 1];
+		}
+		// Pixels are written in runs: the whole image, or each row of an interlaced image at its display position.
+		int runLength = interlace ? iw : npix;
+		int runCount = npix == 0 ? 0 : (interlace ? ih : 1);
+		if (interlace && runCount > 0) {
+			if ((lines == null) || (lines.length < ih)) {
+				lines = new int[ih];
+			}
+			int n = 0;
+			for (int y = 0; y < ih; y += 8) {
+				lines[n++] = y;
+			}
+			for (int y = 4; y < ih; y += 8) {
+				lines[n++] = y;
+			}
+			for (int y = 2; y < ih; y += 4) {
+				lines[n++] = y;
+			}
+			for (int y = 1; y < ih; y += 2) {
+				lines[n++] = y;
+			}
+		}
+		int run = 0;
+		int pi = 0; // the first row of every pass order is row 0
+		int runEnd = pi + runLength;
+		// Initialize GIF data stream decoder.
+		int data_size = read();
+		if ((data_size < 0) || (data_size >= 12)) {
+			// codes are at most 12 bits, so the table could not even hold the initial codes
+			status = STATUS_FORMAT_ERROR;
+			runCount = 0;
+		}
+		final byte[] pixels = this.pixels;
+		final short[] prefix = this.prefix;
+		final byte[] suffix = this.suffix;
+		final byte[] firstPixel = this.firstPixel;
+		final short[] stringLength = this.stringLength;
+		final byte[] pixelStack = this.pixelStack;
+		final byte[] block = this.block;
+		int clear = 1 << data_size;
+		int end_of_information = clear + 1;
+		int available = clear + 2;
+		int old_code = nullCode;
+		int code_size = data_size + 1;
+		int code_mask = (1 << code_size) - 1;
+		if (runCount > 0) {
+			for (int code = 0; code < clear; code++) {
+				prefix[code] = 0;
+				suffix[code] = (byte) code;
+				firstPixel[code] = (byte) code;
+				stringLength[code] = 1;
+			}
+		}
+		// Decode GIF pixel stream.
+		int datum = 0;
+		int bits = 0;
+		decode:
+		while (run < runCount) {
+			// Read a new data block.
+			if (checkCancelled()) {
+				break;
+			}
+			int count = readBlock();
+			if (count <= 0) {
+				break;
+			}
+			for (int bi = 0; bi < count; bi++) {
+				datum += (((int) block[bi]) & 0xff) << bits;
+				bits += 8;
+				while (bits >= code_size) {
+					// Get the next code.
+					int code = datum & code_mask;
+					datum >>= code_size;
+					bits -= code_size;
+					// Interpret the code
+					if ((code > available) || (code == end_of_information)) {
+						break decode;
+					}
+					if (code == clear) {
+						// Reset decoder.
+						code_size = data_size + 1;
+						code_mask = (1 << code_size) - 1;
+						available = clear + 2;
+						old_code = nullCode;
+						continue;
+					}
+					int len;
+					if (old_code == nullCode) {
+						len = 1;
+						old_code = code;
+					} else {
+						// Add a new string to the string table: the previous string followed by the first pixel of
+						// this one, which is the first pixel of the previous string if this is the new entry itself.
+						len = stringLength[old_code] + 1;
+						if ((available >= MAX_STACK_SIZE) || (len > MAX_STACK_SIZE)) {
+							break decode;
+						}
+						prefix[available] = (short) old_code;
+						suffix[available] = firstPixel[code == available ? old_code : code];
+						firstPixel[available] = firstPixel[old_code];
+						stringLength[available] = (short) len;
+						available++;
+						if (((available & code_mask) == 0) && (available < MAX_STACK_SIZE)) {
+							code_size++;
+							code_mask += available;
+						}
+						old_code = code;
+						if ((code < clear) && (pi + 1 < runEnd)) {
+							// a single pixel, the most common string
+							pixels[pi++] = (byte) code;
+							continue;
+						}
+						len = stringLength[code];
+					}
+					if (pi + len <= runEnd) {
+						// Write the string back to front.
+						int c = code;
+						for (int i = pi + len - 1; i > pi; i--) {
+							pixels[i] = suffix[c];
+							c = prefix[c];
+						}
+						pixels[pi] = suffix[c];
+						pi += len;
+						if (pi < runEnd) {
+							continue;
+						}
+						if (++run == runCount) {
+							break decode;
+						}
+						pi = lines[run] * iw;
+						runEnd = pi + runLength;
+					} else {
+						// The string crosses the end of the run: unpack it and copy it run by run.
+						int c = code;
+						for (int i = len - 1; i > 0; i--) {
+							pixelStack[i] = suffix[c];
+							c = prefix[c];
+						}
+						pixelStack[0] = suffix[c];
+						int si = 0;
+						while (si < len) {
+							int n = Math.min(runEnd - pi, len - si);
+							System.arraycopy(pixelStack, si, pixels, pi, n);
+							si += n;
+							pi += n;
+							if (pi == runEnd) {
+								if (++run == runCount) {
+									break decode;
+								}
+								pi = lines[run] * iw;
+								runEnd = pi + runLength;
+							}
+						}
+					}
+				}
+			}
+		}
+		if (run < runCount) {
+			// clear missing pixels
+			Arrays.fill(pixels, pi, runEnd, (byte) 0);
+			while (++run < runCount) {
+				Arrays.fill(pixels, lines[run] * iw, lines[run] * iw + runLength, (byte) 0);
+			}
+		} else if (runCount == 0) {
+			Arrays.fill(pixels, 0, npix, (byte) 0);
+		}
+	}
+
+	/**
+	 * Returns true if an error was encountered during reading/decoding
+	 */
+	protected boolean err() {
+		return status != STATUS_OK;
+	}
+
+	/**
+	 * Initializes or re-initializes reader
+	 */
+	protected void init() {
+		status = STATUS_OK;
+		frameCount = 0;
+		dispose = 0;
+		lastDispose = 0; // the last frame of a previous read must not dispose onto the first one
+		if (canvas != null) {
+			Arrays.fill(canvas, 0);
+		}
+		if (sampledCanvas != null) {
+			Arrays.fill(sampledCanvas, 0);
+		}
+		canvasOpaque = false;
+		gct = null;
+		lct = null;
+	}
+
+	/**
+	 * Reads a single byte from the input stream.
+	 */
+	protected int read() {
+		int curByte = 0;
+		try {
+			curByte = in.read();
+		} catch (Exception e) {
+			status = STATUS_FORMAT_ERROR;
+		}
+		return curByte;
+	}
+
+	/**
+	 * Reads next variable length block from input.
+	 * 
+	 * @return number of bytes stored in "buffer"
+	 */
+	protected int readBlock() {
+		blockSize = read();
+		int n = 0;
+		if (blockSize > 0) {
+			try {
+				n = in.read(block, 0, blockSize);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if (n < blockSize) {
+				status = STATUS_FORMAT_ERROR;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Reads color table as 256 RGB integer values
+	 * 
+	 * @param ncolors
+	 *          int number of colors to read
+	 * @return int array containing 256 colors (packed ARGB with full alpha)
+	 */
+	protected int[] readColorTable(int ncolors) {
+		int nbytes = 3 * ncolors;
+		int[] tab = null;
+		byte[] c = new byte[nbytes];
+		int n = 0;
+		try {
+			n = in.read(c, 0, nbytes);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (n < nbytes) {
+			status = STATUS_FORMAT_ERROR;
+		} else {
+			tab = new int[256]; // max size to avoid bounds checks
+			int i = 0;
+			int j = 0;
+			while (i < ncolors) {
+				int r = ((int) c[j++]) & 0xff;
+				int g = ((int) c[j++]) & 0xff;
+				int b = ((int) c[j++]) & 0xff;
+				tab[i++] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+		return tab;
+	}
+
+	/**
+	 * Main file parser. Reads GIF content blocks.
+	 */
+	protected void readContents() {
+		// read GIF file content blocks
+		boolean done = false;
+		while (!(done || err() || checkCancelled())) {
+			if ((frameLimit > 0) && (frameCount >= frameLimit) && !scanning && !streaming) {
+				paused = true;
+				break;
+			}
+			blockOffset = in.position();
+			int code = read();
+			switch (code) {
+			case 0x2C: // image separator
+				readBitmap();
+				break;
+			case 0x21: // extension
+				code = read();
+				switch (code) {
+				case 0xf9: // graphics control extension
+					gceOffset = blockOffset;
+					readGraphicControlExt();
+					break;
+				case 0xff: // application extension
+					readBlock();
+					String app = "";
+					for (int i = 0; i < 11; i++) {
+						app += (char) block[i];
+					}
+					if (app.equals("NETSCAPE2.0")) {
+						readNetscapeExt();
+					} else {
+						skip(); // don't care
+					}
+					break;
+				case 0xfe:// comment extension
+					skip();
+					break;
+				case 0x01:// plain text extension
+					skip();
+					break;
+				default: // uninteresting extension
+					skip();
+				}
+				break;
+			case 0x3b: // terminator
+				done = true;
+				break;
+			case 0x00: // bad byte, but keep going and see what happens break;
+			default:
+				status = STATUS_FORMAT_ERROR;
+			}
+		}
+	}
+
+	/**
+	 * Reads Graphics Control Extension values
+	 */
+	protected void readGraphicControlExt() {
+		read(); // block size
+		int packed = read(); // packed fields
+		dispose = (packed & 0x1c) >> 2; // disposal method
+		if (dispose == 0) {
+			dispose = 1; // elect to keep old image if discretionary
+		}
+		transparency = (packed & 1) != 0;
+		delay = readShort() * 10; // delay in milliseconds
+		transIndex = read(); // transparent color index
+		read(); // block terminator
+	}
+
+	/**
+	 * Reads GIF file header information.
+	 */
+	protected void readHeader() {
+		String id = "";
+		for (int i = 0; i < 6; i++) {
+			id += (char) read();
+		}
+		if (!id.startsWith("GIF")) {
+			status = STATUS_FORMAT_ERROR;
+			return;
+		}
+		readLSD();
+		if (gctFlag && !err()) {
+			gct = readColorTable(gctSize);
+			bgColor = gct[bgIndex];
+		}
+	}
+
+	/**
+	 * Gets a checksum of the logical screen descriptor and the global color table last read, which tells the GIF a
+	 * frame index was built from apart from other data of the same length.
+	 */
+	protected int headerChecksum() {
+		CRC32 crc = new CRC32();
+		int colors = gctFlag && (gct != null) ? gctSize : 0;
+		byte[] b = new byte[7 + colors * 3];
+		b[0] = (byte) width;
+		b[1] = (byte) (width >> 8);
+		b[2] = (byte) height;
+		b[3] = (byte) (height >> 8);
+		b[4] = (byte) colors;
+		b[5] = (byte) (colors >> 8);
+		b[6] = (byte) bgIndex;
+		for (int i = 0, j = 7; i < colors; i++) {
+			int c = gct[i];
+			b[j++] = (byte) (c >> 16);
+			b[j++] = (byte) (c >> 8);
+			b[j++] = (byte) c;
+		}
+		crc.update(b, 0, b.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Reads next frame image
+	 */
+	protected void readBitmap() {
+		readImage(readImageDescriptor());
+	}
+
+	/**
+	 * Reads the position and size of the next frame image.
+	 * 
+	 * @return the packed fields of the image descriptor
+	 */
+	protected int readImageDescriptor() {
+		ix = readShort(); // (sub)image position & size
+		iy = readShort();
+		iw = readShort();
+		ih = readShort();
+		return read();
+	}
+
+	/**
+	 * Reads the color table and the data of the frame image whose descriptor has just been read.
+	 */
+	protected void readImage(int packed) {
+		lctFlag = (packed & 0x80) != 0; // 1 - local color table flag interlace
+		lctSize = (int) Math.pow(2, (packed & 0x07) + 1);
+		// 3 - sort flag
+		// 4-5 - reserved lctSize = 2 << (packed & 7); // 6-8 - local color
+		// table size
+		interlace = (packed & 0x40) != 0;
+		int lctOffset = lctFlag ? in.position() : -1;
+		if (lctFlag) {
+			lct = readColorTable(lctSize); // read table
+			act = lct; // make local table active
+		} else {
+			act = gct; // make global table active
+			if (bgIndex == transIndex) {
+				bgColor = 0;
+			}
+		}
+		int save = 0;
+		if (transparency) {
+			save = act[transIndex];
+			act[transIndex] = 0; // set transparent color if specified
+		}
+		if (act == null) {
+			status = STATUS_FORMAT_ERROR; // no color table defined
+		}
+		if (err()) {
+			return;
+		}
+		if (scanning) {
+			if (transparency) {
+				act[transIndex] = save;
+			}
+			read(); // LZW minimum code size
+			skip(); // pixel data is decoded on demand
+			if (err()) {
+				return;
+			}
+			frameIndex.add(blockOffset, GifFrameIndex.descriptorOf(ix, iy, iw, ih, packed), gceOffset, lctOffset, delay,
+					dispose, transparency, transIndex);
+			resetFrame();
+			return;
+		}
+		decodeBitmapData(); // decode pixel data
+		skip();
+		if (err()) {
+			return;
+		}
+		if (!streaming) {
+			frameCount++;
+		}
+		setPixels(); // composite pixel data
+		onFrame(getFramePixels(), delay);
+		if (transparency) {
+			act[transIndex] = save;
+		}
+		resetFrame();
+	}
+
+	/**
+	 * Hands the composited frame to the sink.
+	 * 
+	 * @param pixels
+	 *          the frame, {@link #getFrameWidth()} by {@link #getFrameHeight()}
+	 * @param delay
+	 *          delay of the frame in milliseconds
+	 */
+	protected void onFrame(int[] pixels, int delay) {
+		if (frameSink != null) {
+			frameSink.onFrame(this, pixels, delay);
+		}
+	}
+
+	/**
+	 * Reads Logical Screen Descriptor
+	 */
+	protected void readLSD() {
+		// logical screen size
+		width = readShort();
+		height = readShort();
+		// packed fields
+		int packed = read();
+		gctFlag = (packed & 0x80) != 0; // 1 : global color table flag
+		// 2-4 : color resolution
+		// 5 : gct sort flag
+		gctSize = 2 << (packed & 7); // 6-8 : gct size
+		bgIndex = read(); // background color index
+		pixelAspect = read(); // pixel aspect ratio
+		// frame size
+		sampleSize = sampleSizeOf(width, height, targetWidth, targetHeight);
+		frameWidth = (width + sampleSize - 1) / sampleSize;
+		frameHeight = (height + sampleSize - 1) / sampleSize;
+	}
+
+	/**
+	 * Reads Netscape extenstion to obtain iteration count
+	 */
+	protected void readNetscapeExt() {
+		do {
+			readBlock();
+			if (block[0] == 1) {
+				// loop count sub-block
+				int b1 = ((int) block[1]) & 0xff;
+				int b2 = ((int) block[2]) & 0xff;
+				loopCount = (b2 << 8) | b1;
+			}
+		} while ((blockSize > 0) && !err());
+	}
+
+	/**
+	 * Reads next 16-bit value, LSB first
+	 */
+	protected int readShort() {
+		// read 16-bit value, LSB first
+		return read() | (read() << 8);
+	}
+
+	/**
+	 * Resets frame state for reading next image.
+	 */
+	protected void resetFrame() {
+		lastDispose = dispose;
+		lrx = ix;
+		lry = iy;
+		lrw = iw;
+		lrh = ih;
+		lastBgColor = bgColor;
+		dispose = 0;
+		transparency = false;
+		delay = 0;
+		gceOffset = -1;
+		lct = null;
+	}
+
+	/**
+	 * Skips variable length blocks up to and including next zero length block. The blocks are skipped, not copied, so
+	 * scanning the image data of a GIF only reads the block sizes.
+	 */
+	protected void skip() {
+		do {
+			blockSize = read();
+			if (blockSize > 0) {
+				int n = 0;
+				try {
+					n = in.skip(blockSize);
+				} catch (IOException e) {
+				}
+				if (n < blockSize) {
+					status = STATUS_FORMAT_ERROR;
+				}
+			}
+		} while ((blockSize > 0) && !err());
+	}
+}
@@ -0,0 +1,281 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered input for {@link GifReader}.
+ *
+ * Bytes are served from an internal buffer that is refilled in bulk, so reading a byte is an array access instead
+ * of a call into the underlying stream. In-memory sources are read in place without copying.
+ */
+public abstract class GifSource {
+	protected static final int BUFFER_SIZE = 8192;
+
+	protected byte[] buf; // buffered bytes
+	protected int pos; // index of the next byte in buf
+	protected int limit; // index after the last valid byte in buf
+	protected int base; // source position of buf[0]
+
+	/**
+	 * Creates a source reading the given array in place.
+	 */
+	public static GifSource from(byte[] data) {
+		return new ByteArraySource(data, 0, data.length);
+	}
+
+	/**
+	 * Creates a source reading a range of the given array in place.
+	 */
+	public static GifSource from(byte[] data, int offset, int length) {
+		return new ByteArraySource(data, offset, length);
+	}
+
+	/**
+	 * Creates a source reading the remaining bytes of the given buffer. The buffer's position is not changed.
+	 */
+	public static GifSource from(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			return new ByteArraySource(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		return new ByteBufferSource(buffer);
+	}
+
+	/**
+	 * Creates a source reading the given stream. The stream is closed with the source.
+	 */
+	public static GifSource from(InputStream is) {
+		return new StreamSource(is);
+	}
+
+	/**
+	 * Creates a source over a read-only memory mapping of the given file. The bytes are not copied onto the heap and
+	 * the page cache is shared by every mapping of the same file.
+	 */
+	public static GifSource map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return from(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+	}
+
+	/**
+	 * Creates a source over a read-only memory mapping of a range of the given channel, such as the one of the stream
+	 * of an uncompressed raw resource. The channel stays owned by the caller and may be closed once this returns; no
+	 * stream is opened on a descriptor the caller owns, so none can be finalized and close it.
+	 *
+	 * @param length
+	 *          number of bytes to map, or a negative value to map up to the end of the file
+	 */
+	public static GifSource map(FileChannel channel, long offset, long length) throws IOException {
+		if (length < 0) {
+			length = channel.size() - offset;
+		}
+		return from(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+	}
+
+	/**
+	 * Reads a single byte.
+	 *
+	 * @return the byte, or -1 at the end of the source
+	 */
+	public final int read() throws IOException {
+		if (pos >= limit && !fill()) {
+			return -1;
+		}
+		return buf[pos++] & 0xff;
+	}
+
+	/**
+	 * Reads up to len bytes, blocking until they are all read or the end of the source is reached.
+	 *
+	 * @return number of bytes read
+	 */
+	public final int read(byte[] b, int off, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			if (pos >= limit && !fill()) {
+				break;
+			}
+			int count = Math.min(limit - pos, len - n);
+			System.arraycopy(buf, pos, b, off + n, count);
+			pos += count;
+			n += count;
+		}
+		return n;
+	}
+
+	/**
+	 * Skips up to n bytes.
+	 *
+	 * @return number of bytes skipped
+	 */
+	public final int skip(int n) throws IOException {
+		int skipped = 0;
+		while (skipped < n) {
+			if (pos >= limit && !fill()) {
+				break;
+			}
+			int count = Math.min(limit - pos, n - skipped);
+			pos += count;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return number of bytes read from the start of the source
+	 */
+	public final int position() {
+		return base + pos;
+	}
+
+	/**
+	 * @return true if {@link #seek(int)} is supported and the data stays available after reading
+	 */
+	public boolean isSeekable() {
+		return false;
+	}
+
+	/**
+	 * Moves to the given position from the start of the source.
+	 *
+	 * @throws IOException
+	 *           if the source is not seekable or the position is out of range
+	 */
+	public void seek(int position) throws IOException {
+		throw new IOException("source is not seekable");
+	}
+
+	/**
+	 * @return total length of the source, or -1 if unknown
+	 */
+	public int length() {
+		return -1;
+	}
+
+	public void close() throws IOException {
+	}
+
+	/**
+	 * Refills buf with the bytes following the current buffer.
+	 *
+	 * @return false at the end of the source
+	 */
+	protected abstract boolean fill() throws IOException;
+
+	private static class ByteArraySource extends GifSource {
+		private final int offset;
+		private final int length;
+
+		ByteArraySource(byte[] data, int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+			buf = data;
+			pos = offset;
+			limit = offset + length;
+			base = -offset;
+		}
+
+		@Override
+		public boolean isSeekable() {
+			return true;
+		}
+
+		@Override
+		public void seek(int position) throws IOException {
+			if (position < 0 || position > length) {
+				throw new IOException("position out of range: " + position);
+			}
+			pos = offset + position;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		protected boolean fill() {
+			return false;
+		}
+	}
+
+	private static class ByteBufferSource extends GifSource {
+		private final ByteBuffer data;
+		private final int start;
+
+		ByteBufferSource(ByteBuffer buffer) {
+			data = buffer.duplicate();
+			start = data.position();
+			buf = new byte[Math.min(BUFFER_SIZE, data.remaining())];
+		}
+
+		@Override
+		public boolean isSeekable() {
+			return true;
+		}
+
+		@Override
+		public void seek(int position) throws IOException {
+			if (position < 0 || position > length()) {
+				throw new IOException("position out of range: " + position);
+			}
+			data.position(start + position);
+			base = position;
+			pos = 0;
+			limit = 0;
+		}
+
+		@Override
+		public int length() {
+			return data.limit() - start;
+		}
+
+		@Override
+		protected boolean fill() {
+			int n = Math.min(buf.length, data.remaining());
+			if (n <= 0) {
+				return false;
+			}
+			base += limit;
+			data.get(buf, 0, n);
+			pos = 0;
+			limit = n;
+			return true;
+		}
+	}
+
+	private static class StreamSource extends GifSource {
+		private final InputStream in;
+
+		StreamSource(InputStream in) {
+			this.in = in;
+			buf = new byte[BUFFER_SIZE];
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		protected boolean fill() throws IOException {
+			int n = in.read(buf, 0, buf.length);
+			if (n <= 0) {
+				return false;
+			}
+			base += limit;
+			pos = 0;
+			limit = n;
+			return true;
+		}
+	}
+}
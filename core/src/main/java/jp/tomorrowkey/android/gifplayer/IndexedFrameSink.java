@@ -0,0 +1,172 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps every frame read as one byte per pixel, indices into a palette of its colors, a quarter of the memory of ARGB
+ * pixels. The palette of the previous frame is extended, or shared as is when a frame has no new color, and restarted
+ * when it would exceed 256 colors. Frames with more than 256 colors themselves, e.g. when blended by
+ * {@link GifReader#setTargetSize(int, int)}, are kept as ARGB pixels instead.
+ */
+public class IndexedFrameSink implements FrameSink {
+	private final ArrayList<Frame> frames = new ArrayList<Frame>();
+	private int width;
+	private int height;
+	byte[] frameIndices; // palette indices of the frame last indexed
+	int[] framePalette; // colors of frameIndices, extended from the previous frame
+	private int[] paletteBuffer; // colors of the palette being built
+	private int paletteSize;
+	private int[] colorKeys; // hash table of the palette colors
+	private short[] colorSlots; // palette index of each colorKeys entry, -1 if empty
+
+	private static class Frame {
+		Frame(byte[] ind, int[] pal, int[] pix, int del) {
+			indices = ind;
+			palette = pal;
+			pixels = pix;
+			delay = del;
+		}
+
+		final byte[] indices; // null if kept as pixels
+		final int[] palette; // may be shared with the neighboring frames
+		final int[] pixels;
+		final int delay;
+	}
+
+	@Override
+	public void onFrame(GifReader reader, int[] pixels, int delay) {
+		width = reader.getFrameWidth();
+		height = reader.getFrameHeight();
+		int n = width * height;
+		if (indexFrame(pixels, n)) {
+			frames.add(new Frame(frameIndices, framePalette, null, delay));
+		} else {
+			frames.add(new Frame(null, null, Arrays.copyOf(pixels, n), delay));
+		}
+	}
+
+	/**
+	 * Drops the frames kept so far, e.g. before reading another GIF.
+	 */
+	public void clear() {
+		frames.clear();
+		resetPalette();
+	}
+
+	public int getFrameCount() {
+		return frames.size();
+	}
+
+	/**
+	 * Gets the palette indices of frame n, {@link #getWidth()} by {@link #getHeight()}.
+	 *
+	 * @return indices into {@link #getPalette(int)}, or null if the frame is kept as {@link #getPixels(int)}
+	 */
+	public byte[] getIndices(int n) {
+		return frames.get(n).indices;
+	}
+
+	/**
+	 * @return colors of the indices of frame n, or null if the frame is kept as pixels
+	 */
+	public int[] getPalette(int n) {
+		return frames.get(n).palette;
+	}
+
+	/**
+	 * @return ARGB pixels of frame n if it has too many colors to be indexed, else null
+	 */
+	public int[] getPixels(int n) {
+		return frames.get(n).pixels;
+	}
+
+	/**
+	 * @return delay of frame n in milliseconds
+	 */
+	public int getDelay(int n) {
+		return frames.get(n).delay;
+	}
+
+	/**
+	 * @return width of the frames
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return height of the frames
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Converts pixels into frameIndices and framePalette.
+	 *
+	 * @return false if the pixels have more than 256 colors
+	 */
+	boolean indexFrame(int[] src, int n) {
+		if (colorKeys == null) {
+			colorKeys = new int[512];
+			colorSlots = new short[512];
+			paletteBuffer = new int[256];
+			resetPalette();
+		}
+		byte[] dest = new byte[n];
+		if (!indexPixels(src, n, dest)) {
+			resetPalette();
+			if (!indexPixels(src, n, dest)) {
+				resetPalette();
+				return false;
+			}
+		}
+		if ((framePalette == null) || (framePalette.length != paletteSize)) {
+			framePalette = Arrays.copyOf(paletteBuffer, paletteSize);
+		}
+		frameIndices = dest;
+		return true;
+	}
+
+	private boolean indexPixels(int[] src, int n, byte[] dest) {
+		int[] keys = colorKeys;
+		short[] slots = colorSlots;
+		int size = paletteSize;
+		int lastColor = 0;
+		int lastIndex = -1;
+		for (int i = 0; i < n; i++) {
+			int c = src[i];
+			if ((c != lastColor) || (lastIndex < 0)) {
+				int h = (c * 0x9e3779b1) >>> 23;
+				while ((slots[h] >= 0) && (keys[h] != c)) {
+					h = (h + 1) & 511;
+				}
+				if (slots[h] < 0) {
+					if (size == 256) {
+						return false;
+					}
+					keys[h] = c;
+					slots[h] = (short) size;
+					paletteBuffer[size++] = c;
+				}
+				lastColor = c;
+				lastIndex = slots[h];
+			}
+			dest[i] = (byte) lastIndex;
+		}
+		paletteSize = size;
+		return true;
+	}
+
+	/**
+	 * Starts a new palette for the next frame.
+	 */
+	void resetPalette() {
+		if (colorSlots != null) {
+			Arrays.fill(colorSlots, (short) -1);
+		}
+		paletteSize = 0;
+		framePalette = null;
+	}
+}
@@ -0,0 +1,338 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+/**
+ * Decodes the GIFs of src/test/resources/corpus and checks the frames against corpus/reference.txt, the frames the
+ * decoder composited before it was rewritten. The corpus covers interlaced frames with local color tables,
+ * transparency, sub-frames and dispose 1, 2 and 3.
+ */
+public class GifReaderTest {
+
+	static final String[] CORPUS = { "break_droid.gif", "emoji.gif", "interlaced.gif", "transparent.gif",
+			"many_frames.gif" };
+
+	@Test
+	public void framesMatchReference() throws IOException {
+		final Map<String, List<String>> reference = loadReference();
+		// one reader for every file, so that state left over from the previous file would show
+		final GifReader reader = new GifReader();
+		final ArgbFrameSink sink = new ArgbFrameSink();
+		reader.setFrameSink(sink);
+		for (String name : CORPUS) {
+			sink.clear();
+			assertEquals(name, GifReader.STATUS_OK, reader.read(GifSource.from(load(name))));
+			final List<String> frames = reference.get(name);
+			assertEquals(name, frames.size(), sink.getFrameCount());
+			for (int n = 0; n < frames.size(); n++) {
+				assertEquals(name + " frame " + n, frames.get(n), sink.getDelay(n) + " " + crcOf(sink.getFrame(n)));
+			}
+		}
+	}
+
+	@Test
+	public void resumeReadsTheFramesAfterTheFirst() throws IOException {
+		for (String name : CORPUS) {
+			final GifReader reader = new GifReader();
+			final ArgbFrameSink full = new ArgbFrameSink();
+			reader.setFrameSink(full);
+			reader.read(GifSource.from(load(name)));
+
+			final ArgbFrameSink resumed = new ArgbFrameSink();
+			reader.setFrameSink(resumed);
+			assertEquals(name, GifReader.STATUS_OK, reader.readFirstFrame(GifSource.from(load(name))));
+			assertEquals(name, 1, resumed.getFrameCount());
+			assertTrue(name, reader.isPaused());
+			assertEquals(name, GifReader.STATUS_OK, reader.resume());
+			assertFalse(name, reader.isPaused());
+			assertEquals(name, full.getFrameCount(), resumed.getFrameCount());
+			for (int n = 0; n < full.getFrameCount(); n++) {
+				assertArrayEquals(name + " frame " + n, full.getFrame(n), resumed.getFrame(n));
+			}
+		}
+	}
+
+	@Test
+	public void changedRegionHoldsEveryChangedPixel() throws IOException {
+		for (String name : CORPUS) {
+			final List<int[]> regions = new ArrayList<int[]>();
+			final ArgbFrameSink sink = new ArgbFrameSink() {
+				@Override
+				public void onFrame(GifReader reader, int[] pixels, int delay) {
+					super.onFrame(reader, pixels, delay);
+					regions.add(new int[] { reader.crx, reader.cry, reader.crr, reader.crb });
+				}
+			};
+			final GifReader reader = new GifReader();
+			reader.setFrameSink(sink);
+			reader.read(GifSource.from(load(name)));
+			final int width = sink.getWidth();
+			for (int n = 1; n < sink.getFrameCount(); n++) {
+				final int[] previous = sink.getFrame(n - 1);
+				final int[] frame = sink.getFrame(n);
+				final int[] region = regions.get(n);
+				for (int i = 0; i < frame.length; i++) {
+					final int x = i % width;
+					final int y = i / width;
+					if (x < region[0] || y < region[1] || x >= region[2] || y >= region[3]) {
+						assertEquals(name + " frame " + n + " at " + x + "," + y, previous[i], frame[i]);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void targetSizeAveragesEveryBlock() throws IOException {
+		for (String name : CORPUS) {
+			final GifReader reader = new GifReader();
+			final ArgbFrameSink full = new ArgbFrameSink();
+			reader.setFrameSink(full);
+			reader.read(GifSource.from(load(name)));
+			final int width = full.getWidth();
+			final int height = full.getHeight();
+
+			final ArgbFrameSink sampled = new ArgbFrameSink();
+			reader.setFrameSink(sampled);
+			reader.setTargetSize(width / 2, height / 2);
+			reader.read(GifSource.from(load(name)));
+			assertEquals(name, 2, reader.getSampleSize());
+			assertEquals(name, full.getFrameCount(), sampled.getFrameCount());
+			for (int n = 0; n < full.getFrameCount(); n++) {
+				final int[] expected = sample(full.getFrame(n), width, height, 2);
+				assertArrayEquals(name + " frame " + n, expected, sampled.getFrame(n));
+			}
+		}
+	}
+
+	@Test
+	public void interlacedFramesMatchProgressiveFrames() {
+		// heights below 8 leave some of the four passes empty
+		for (int height = 1; height <= 17; height++) {
+			final byte[] indices = new byte[5 * height];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = (byte) ((i * 7 + i / 5) % 4);
+			}
+			final ArgbFrameSink interlaced = decode(gifOf(5, height, indices, true));
+			final ArgbFrameSink progressive = decode(gifOf(5, height, indices, false));
+			assertEquals(1, interlaced.getFrameCount());
+			assertArrayEquals("height " + height, progressive.getFrame(0), interlaced.getFrame(0));
+			for (int i = 0; i < indices.length; i++) {
+				assertEquals(PALETTE[indices[i]], progressive.getFrame(0)[i]);
+			}
+		}
+	}
+
+	@Test
+	public void minimumCodeSizeAbove11IsFormatError() {
+		final byte[] indices = new byte[] { 1, 2, 3, 0 };
+		final byte[] data = gifOf(2, 2, indices, false);
+		assertEquals(GifReader.STATUS_OK, new GifReader().read(GifSource.from(data)));
+		// codes are at most 12 bits wide, so a table of 4096 initial codes leaves no room for the clear code
+		data[LZW_MINIMUM_CODE_SIZE] = 12;
+		assertEquals(GifReader.STATUS_FORMAT_ERROR, new GifReader().read(GifSource.from(data)));
+	}
+
+	private static final int[] PALETTE = { 0xff000000, 0xffff0000, 0xff00ff00, 0xff0000ff };
+
+	/** offset of the LZW minimum code size in the GIFs of {@link #gifOf(int, int, byte[], boolean)} */
+	private static final int LZW_MINIMUM_CODE_SIZE = 6 + 7 + 3 * 4 + 10;
+
+	/**
+	 * Writes a GIF of one frame in the colors of PALETTE. The LZW data is not compressed: a clear code is written
+	 * before the table grows past 3-bit codes.
+	 */
+	private static byte[] gifOf(int width, int height, byte[] indices, boolean interlace) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write('G');
+		out.write('I');
+		out.write('F');
+		out.write('8');
+		out.write('9');
+		out.write('a');
+		writeShort(out, width);
+		writeShort(out, height);
+		out.write(0x81); // global color table of 4 colors
+		out.write(0);
+		out.write(0);
+		for (int color : PALETTE) {
+			out.write(color >> 16);
+			out.write(color >> 8);
+			out.write(color);
+		}
+		out.write(0x2C);
+		writeShort(out, 0);
+		writeShort(out, 0);
+		writeShort(out, width);
+		writeShort(out, height);
+		out.write(interlace ? 0x40 : 0);
+		out.write(2); // LZW minimum code size
+
+		final ByteArrayOutputStream codes = new ByteArrayOutputStream();
+		int datum = 0;
+		int bits = 0;
+		int written = 0;
+		for (int pass = 0; pass < 4; pass++) {
+			final int start = interlace ? new int[] { 0, 4, 2, 1 }[pass] : pass == 0 ? 0 : height;
+			final int step = interlace ? new int[] { 8, 8, 4, 2 }[pass] : 1;
+			for (int y = start; y < height; y += step) {
+				for (int x = 0; x < width; x++) {
+					if (written % 2 == 0) {
+						datum |= 4 << bits; // clear
+						bits += 3;
+					}
+					datum |= indices[y * width + x] << bits;
+					bits += 3;
+					written++;
+					while (bits >= 8) {
+						codes.write(datum);
+						datum >>= 8;
+						bits -= 8;
+					}
+				}
+			}
+		}
+		datum |= 5 << bits; // end of information
+		bits += 3;
+		while (bits > 0) {
+			codes.write(datum);
+			datum >>= 8;
+			bits -= 8;
+		}
+		final byte[] data = codes.toByteArray();
+		for (int i = 0; i < data.length; i += 255) {
+			final int count = Math.min(255, data.length - i);
+			out.write(count);
+			out.write(data, i, count);
+		}
+		out.write(0);
+		out.write(0x3B);
+		return out.toByteArray();
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >> 8);
+	}
+
+	private static ArgbFrameSink decode(byte[] data) {
+		final GifReader reader = new GifReader();
+		final ArgbFrameSink sink = new ArgbFrameSink();
+		reader.setFrameSink(sink);
+		assertEquals(GifReader.STATUS_OK, reader.read(GifSource.from(data)));
+		return sink;
+	}
+
+	/**
+	 * Reduces pixels by averaging each size by size block weighted by alpha, over the whole frame.
+	 */
+	private static int[] sample(int[] pixels, int width, int height, int size) {
+		final int sampledWidth = (width + size - 1) / size;
+		final int sampledHeight = (height + size - 1) / size;
+		final int[] sampled = new int[sampledWidth * sampledHeight];
+		for (int sy = 0; sy < sampledHeight; sy++) {
+			for (int sx = 0; sx < sampledWidth; sx++) {
+				long a = 0, r = 0, g = 0, b = 0;
+				int count = 0;
+				for (int y = sy * size; y < Math.min(sy * size + size, height); y++) {
+					for (int x = sx * size; x < Math.min(sx * size + size, width); x++) {
+						final int c = pixels[y * width + x];
+						final int ca = c >>> 24;
+						a += ca;
+						r += ((c >> 16) & 0xff) * ca;
+						g += ((c >> 8) & 0xff) * ca;
+						b += (c & 0xff) * ca;
+						count++;
+					}
+				}
+				if (a != 0) {
+					sampled[sy * sampledWidth + sx] = (int) (((a / count) << 24) | ((r / a) << 16) | ((g / a) << 8)
+							| (b / a));
+				}
+			}
+		}
+		return sampled;
+	}
+
+	static String crcOf(int[] pixels) {
+		final CRC32 crc = new CRC32();
+		final byte[] bytes = new byte[pixels.length * 4];
+		for (int i = 0; i < pixels.length; i++) {
+			bytes[i * 4] = (byte) (pixels[i] >>> 24);
+			bytes[i * 4 + 1] = (byte) (pixels[i] >>> 16);
+			bytes[i * 4 + 2] = (byte) (pixels[i] >>> 8);
+			bytes[i * 4 + 3] = (byte) pixels[i];
+		}
+		crc.update(bytes);
+		return String.format("%08x", crc.getValue());
+	}
+
+	/**
+	 * @return the lines of reference.txt by file, each "delay crc" of one frame
+	 */
+	private static Map<String, List<String>> loadReference() throws IOException {
+		final Map<String, List<String>> reference = new LinkedHashMap<String, List<String>>();
+		final BufferedReader in = new BufferedReader(new InputStreamReader(open("reference.txt"), "US-ASCII"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final String[] fields = line.split(" ");
+				List<String> frames = reference.get(fields[0]);
+				if (frames == null) {
+					frames = new ArrayList<String>();
+					reference.put(fields[0], frames);
+				}
+				assertEquals(line, frames.size(), Integer.parseInt(fields[1]));
+				frames.add(fields[2] + " " + fields[3]);
+			}
+		} finally {
+			in.close();
+		}
+		assertTrue(reference.keySet().containsAll(Arrays.asList(CORPUS)));
+		return reference;
+	}
+
+	static byte[] load(String name) throws IOException {
+		final InputStream in = open(name);
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buf = new byte[8192];
+			int count;
+			while ((count = in.read(buf)) > 0) {
+				out.write(buf, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static InputStream open(String name) throws FileNotFoundException {
+		final InputStream in = GifReaderTest.class.getResourceAsStream("/corpus/" + name);
+		if (in == null) {
+			throw new FileNotFoundException(name);
+		}
+		return in;
+	}
+}
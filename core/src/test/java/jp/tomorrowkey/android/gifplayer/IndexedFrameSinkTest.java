@@ -0,0 +1,48 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks that the frames kept as palette indices expand back into the ARGB frames of the corpus.
+ */
+public class IndexedFrameSinkTest {
+
+	@Test
+	public void indicesExpandToPixels() throws IOException {
+		for (String name : GifReaderTest.CORPUS) {
+			final byte[] data = GifReaderTest.load(name);
+			final GifReader reader = new GifReader();
+			final ArgbFrameSink argb = new ArgbFrameSink();
+			reader.setFrameSink(argb);
+			reader.read(GifSource.from(data));
+			final IndexedFrameSink indexed = new IndexedFrameSink();
+			reader.setFrameSink(indexed);
+			reader.read(GifSource.from(data));
+
+			assertEquals(name, argb.getFrameCount(), indexed.getFrameCount());
+			for (int n = 0; n < argb.getFrameCount(); n++) {
+				final int[] expected = argb.getFrame(n);
+				final byte[] indices = indexed.getIndices(n);
+				final int[] pixels;
+				if (indices != null) {
+					final int[] palette = indexed.getPalette(n);
+					assertTrue(name + " frame " + n, palette.length <= 256);
+					pixels = new int[indices.length];
+					for (int i = 0; i < indices.length; i++) {
+						pixels[i] = palette[indices[i] & 0xff];
+					}
+				} else {
+					pixels = indexed.getPixels(n);
+				}
+				assertArrayEquals(name + " frame " + n, expected, pixels);
+				assertEquals(name + " frame " + n, argb.getDelay(n), indexed.getDelay(n));
+			}
+		}
+	}
+}
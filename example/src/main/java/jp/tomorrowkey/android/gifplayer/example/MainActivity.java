@@ -2,8 +2,6 @@ package jp.tomorrowkey.android.gifplayer.example;
 
 import android.app.Activity;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.text.Editable;
 import android.text.Spannable;
 import android.text.TextWatcher;
@@ -25,9 +23,6 @@ public class MainActivity extends Activity implements OnClickListener, TextWatch
 
 	static {
 		Timber.plant(new Timber.DebugTree());
-		final HandlerThread thread = new HandlerThread("gifplayer-background");
-		thread.start();
-		GifView.setBgHandler(new Handler(thread.getLooper()));
 	}
 
 	@Override
@@ -95,6 +90,7 @@ public class MainActivity extends Activity implements OnClickListener, TextWatch
 				final int spanEnd = s.getSpanEnd(gifSpan);
 				if (spanStart + 1 != spanEnd) {
 					s.removeSpan(gifSpan);
+					gifSpan.release();
 					return false;
 				} else if (spanStart == position) {
 					return true;
@@ -0,0 +1,123 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of mutable frame bitmaps keyed by size and config, bounded by their total byte size.
+ *
+ * Decoders take their frame bitmaps from the pool and give them back when they are recycled, so that showing one GIF
+ * after another reuses the same native bitmap memory instead of allocating and collecting it. Bitmaps trimmed from
+ * the pool are recycled.
+ */
+public class GifBitmapPool {
+	private static GifBitmapPool instance;
+
+	private final HashMap<Long, ArrayDeque<Bitmap>> pool = new HashMap<Long, ArrayDeque<Bitmap>>(); // oldest first
+	private final LinkedHashMap<Bitmap, Long> order = new LinkedHashMap<Bitmap, Long>(); // bitmap to key, oldest first
+	private int maxSize;
+	private int size;
+
+	/**
+	 * Gets the shared pool, sized to a sixteenth of the maximum heap.
+	 */
+	public static synchronized GifBitmapPool getInstance() {
+		if (instance == null) {
+			instance = new GifBitmapPool((int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE));
+		}
+		return instance;
+	}
+
+	/**
+	 * @param maxSize
+	 *          maximum total byte size of the pooled bitmaps
+	 */
+	public GifBitmapPool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets a mutable bitmap of the given size and config. Its contents are undefined.
+	 */
+	public Bitmap get(int width, int height, Config config) {
+		synchronized (this) {
+			ArrayDeque<Bitmap> bitmaps = pool.get(keyOf(width, height, config));
+			if (bitmaps != null && !bitmaps.isEmpty()) {
+				Bitmap bitmap = bitmaps.pollLast();
+				order.remove(bitmap);
+				size -= byteCountOf(bitmap);
+				return bitmap;
+			}
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Returns a bitmap to the pool. The caller must not use it afterwards; it may be recycled at any time.
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		if (order.containsKey(bitmap)) {
+			return; // already pooled
+		}
+		int byteCount = byteCountOf(bitmap);
+		if (byteCount > maxSize) {
+			bitmap.recycle();
+			return;
+		}
+		Long key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		ArrayDeque<Bitmap> bitmaps = pool.get(key);
+		if (bitmaps == null) {
+			bitmaps = new ArrayDeque<Bitmap>();
+			pool.put(key, bitmaps);
+		}
+		bitmaps.addLast(bitmap);
+		order.put(bitmap, key);
+		size += byteCount;
+		trimToSize(maxSize);
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * @return total byte size of the pooled bitmaps
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private void trimToSize(int maxSize) {
+		Iterator<Map.Entry<Bitmap, Long>> it = order.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<Bitmap, Long> entry = it.next();
+			it.remove();
+			// the oldest bitmap overall is also the oldest of its size
+			Bitmap bitmap = pool.get(entry.getValue()).pollFirst();
+			size -= byteCountOf(bitmap);
+			bitmap.recycle();
+		}
+	}
+
+	private static Long keyOf(int width, int height, Config config) {
+		return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+	}
+
+	static int byteCountOf(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
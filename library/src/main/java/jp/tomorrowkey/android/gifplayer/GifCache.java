@@ -0,0 +1,139 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import android.graphics.Bitmap.Config;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide LRU cache of decoded GIFs shared by {@link GifView} and {@link GifSpan}, bounded by the byte size of
+ * the decoded frames.
+ *
+ * Cached decoders are shared between every view and span showing the same source, so they must not be modified
+ * after being put. The cache holds a reference to each cached decoder (see {@link GifDecoder#acquire()}), so their
+ * frames go back to the bitmap pool only once they are evicted and no longer drawn. Streaming decoders keep
+ * per-player state and are never cached.
+ */
+public class GifCache {
+	private static GifCache instance;
+
+	private final LinkedHashMap<String, GifDecoder> map = new LinkedHashMap<String, GifDecoder>(16, 0.75f, true);
+	private int maxSize;
+	private int size;
+
+	/**
+	 * Gets the shared cache, sized to an eighth of the maximum heap.
+	 */
+	public static synchronized GifCache getInstance() {
+		if (instance == null) {
+			instance = new GifCache((int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE));
+		}
+		return instance;
+	}
+
+	/**
+	 * @param maxSize
+	 *          maximum total byte size of the cached frames
+	 */
+	public GifCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets the cache key of a GIF resource.
+	 */
+	public static String keyOf(int resId) {
+		return "res:" + resId;
+	}
+
+	/**
+	 * Gets the cache key of a GIF file. The key changes when the file is modified.
+	 */
+	public static String keyOf(File file) {
+		return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+	}
+
+	/**
+	 * Gets the cache key of a source decoded with the given options (see {@link GifDecoder#setConfig(Config)} and
+	 * {@link GifDecoder#setTargetSize(int, int)}). Target sizes giving the same sample size (see
+	 * {@link GifReader#sampleSizeOf(int, int, int, int)}) decode the same frames and share the key.
+	 */
+	public static String keyOf(String sourceKey, Config config, int sampleSize) {
+		String key = sourceKey + ":" + (config != null ? config.name() : "auto");
+		if (sampleSize > 1) {
+			key += ":1/" + sampleSize;
+		}
+		return key;
+	}
+
+	/**
+	 * Gets the decoder cached for key with a reference added for the caller, which must release it.
+	 * 
+	 * @return the decoder cached for key, or null if none
+	 */
+	public synchronized GifDecoder get(String key) {
+		GifDecoder decoder = map.get(key);
+		if (decoder != null) {
+			decoder.acquire();
+		}
+		return decoder;
+	}
+
+	/**
+	 * Caches a fully decoded decoder. Streaming decoders and decoders larger than the cache are ignored.
+	 */
+	public synchronized void put(String key, GifDecoder decoder) {
+		if (decoder.isStreaming()) {
+			return;
+		}
+		int decoderSize = decoder.getByteCount();
+		if (decoderSize > maxSize) {
+			return;
+		}
+		decoder.acquire();
+		GifDecoder previous = map.put(key, decoder);
+		if (previous != null) {
+			size -= previous.getByteCount();
+			previous.release();
+		}
+		size += decoderSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized void remove(String key) {
+		GifDecoder previous = map.remove(key);
+		if (previous != null) {
+			size -= previous.getByteCount();
+			previous.release();
+		}
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized void evictAll() {
+		trimToSize(-1);
+	}
+
+	/**
+	 * @return total byte size of the cached frames
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private void trimToSize(int maxSize) {
+		Iterator<Map.Entry<String, GifDecoder>> it = map.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			// least recently used first
+			GifDecoder decoder = it.next().getValue();
+			size -= decoder.getByteCount();
+			it.remove();
+			decoder.release();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import androidx.annotation.RequiresApi;
+import androidx.annotation.UiThread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Process-wide animation clock shared by every {@link GifView} and {@link GifSpan}.
+ *
+ * Animations ask to be woken at the time of their next frame change. The clock sleeps until the earliest requested
+ * time and then wakes every due animation on the UI thread, aligned to the display's vsync on API 16 and later. Any
+ * number of animations on screen costs a single timer, and a view is only redrawn when its frame changes.
+ */
+public class GifClock {
+
+	public interface Animation {
+		/**
+		 * Called once the time requested by {@link GifClock#schedule(Animation, long)} has come. The request is
+		 * consumed; schedule again to be woken at the next frame change.
+		 *
+		 * @param now
+		 *          current time of the clock
+		 */
+		@UiThread
+		void onFrame(long now);
+	}
+
+	private static GifClock instance;
+
+	private final ArrayList<Animation> animations = new ArrayList<Animation>();
+	private long[] times = new long[16]; // requested time of each animation
+	private final ArrayList<Animation> due = new ArrayList<Animation>(); // reused by tick
+	private long wakeTime = Long.MAX_VALUE; // time the clock is going to wake at
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Runnable tick = new Runnable() {
+		@Override
+		public void run() {
+			tick();
+		}
+	};
+	private final VsyncTicker vsyncTicker;
+
+	@UiThread
+	public static GifClock getInstance() {
+		if (instance == null) {
+			instance = new GifClock();
+		}
+		return instance;
+	}
+
+	private GifClock() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			vsyncTicker = new VsyncTicker(tick);
+		} else {
+			vsyncTicker = null;
+		}
+	}
+
+	/**
+	 * @return current time of the clock in milliseconds; monotonic, not wall clock time
+	 */
+	public static long now() {
+		return SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Wakes animation at the given time of the clock, replacing its previous request if any.
+	 */
+	@UiThread
+	public void schedule(final Animation animation, final long time) {
+		final int i = animations.indexOf(animation);
+		if (i >= 0) {
+			times[i] = time;
+		} else {
+			if (animations.size() == times.length) {
+				times = Arrays.copyOf(times, times.length * 2);
+			}
+			times[animations.size()] = time;
+			animations.add(animation);
+		}
+		if (time < wakeTime) {
+			wakeAt(time);
+		}
+	}
+
+	/**
+	 * Drops the request of animation. A clock with no request left stays asleep.
+	 */
+	@UiThread
+	public void cancel(final Animation animation) {
+		final int i = animations.indexOf(animation);
+		if (i >= 0) {
+			remove(i);
+		}
+	}
+
+	private void tick() {
+		wakeTime = Long.MAX_VALUE;
+		final long now = now();
+		// take the due animations out first; they usually schedule themselves again
+		for (int i = animations.size() - 1; i >= 0; i--) {
+			if (times[i] <= now) {
+				due.add(animations.get(i));
+				remove(i);
+			}
+		}
+		for (int i = 0; i < due.size(); i++) {
+			due.get(i).onFrame(now);
+		}
+		due.clear();
+		long next = Long.MAX_VALUE;
+		for (int i = 0; i < animations.size(); i++) {
+			next = Math.min(next, times[i]);
+		}
+		if (next != Long.MAX_VALUE && next < wakeTime) {
+			wakeAt(next);
+		}
+	}
+
+	private void wakeAt(final long time) {
+		wakeTime = time;
+		final long delay = Math.max(0, time - now());
+		if (vsyncTicker != null) {
+			vsyncTicker.cancel();
+			vsyncTicker.post(delay);
+		} else {
+			handler.removeCallbacks(tick);
+			handler.postAtTime(tick, time);
+		}
+	}
+
+	private void remove(final int i) {
+		final int last = animations.size() - 1;
+		animations.set(i, animations.get(last));
+		times[i] = times[last];
+		animations.remove(last);
+	}
+
+	/**
+	 * Runs the tick in the animation phase of the first display frame after a delay, so that the views it invalidates
+	 * are drawn in that same frame.
+	 */
+	@RequiresApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class VsyncTicker implements Choreographer.FrameCallback {
+		private final Runnable tick;
+
+		VsyncTicker(final Runnable tick) {
+			this.tick = tick;
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			tick.run();
+		}
+
+		void post(final long delay) {
+			Choreographer.getInstance().postFrameCallbackDelayed(this, delay);
+		}
+
+		void cancel() {
+			Choreographer.getInstance().removeFrameCallback(this);
+		}
+	}
+}
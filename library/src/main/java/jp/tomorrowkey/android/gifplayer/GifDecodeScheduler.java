@@ -0,0 +1,200 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import android.os.Process;
+
+import androidx.annotation.AnyThread;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the decodes of {@link GifView} and {@link GifSpan} on a bounded number of threads.
+ *
+ * Waiting decodes are started by priority, highest first, and among equal priorities the most recently requested
+ * first, so that the GIFs scrolled into view last are decoded before the ones scrolled past. The decodes themselves
+ * run on an injectable {@link Executor}, never more than the parallelism at a time. A decode the executor rejects
+ * stays queued and is offered again when the next decode is requested or finishes.
+ */
+public class GifDecodeScheduler {
+
+	/** priority of decodes for GIFs that are not visible */
+	public static final int PRIORITY_HIDDEN = 0;
+
+	private static GifDecodeScheduler instance;
+
+	private final Executor executor;
+	private final int parallelism;
+	private final PriorityQueue<Job> queue = new PriorityQueue<Job>();
+	private int running;
+	private long sequence;
+
+	private static class Job implements Comparable<Job> {
+		final Runnable task;
+		final int priority;
+		final long sequence;
+
+		Job(Runnable task, int priority, long sequence) {
+			this.task = task;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Job another) {
+			if (priority != another.priority) {
+				return priority > another.priority ? -1 : 1;
+			}
+			// last in, first out
+			return sequence > another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Gets the shared scheduler. Unless one has been set, it runs up to one decode per spare CPU core (at least one,
+	 * at most four) on background priority threads.
+	 */
+	public static synchronized GifDecodeScheduler getInstance() {
+		if (instance == null) {
+			final int parallelism = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+			instance = new GifDecodeScheduler(newDefaultExecutor(), parallelism);
+		}
+		return instance;
+	}
+
+	/**
+	 * Replaces the shared scheduler, e.g. to run the decodes on the application's own thread pool. Decodes already
+	 * requested stay with the previous scheduler.
+	 */
+	public static synchronized void setInstance(GifDecodeScheduler scheduler) {
+		instance = scheduler;
+	}
+
+	/**
+	 * @param executor
+	 *          runs the decodes; never given more than parallelism decodes at a time
+	 * @param parallelism
+	 *          maximum number of decodes running at the same time
+	 */
+	public GifDecodeScheduler(Executor executor, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.executor = executor;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Gets a priority for a GIF shown at the given size. Visible GIFs come before hidden ones and larger ones before
+	 * smaller ones; sizes within a factor of two share a priority so that the latest requests among them go first.
+	 *
+	 * @param area
+	 *          number of pixels the GIF covers on screen
+	 */
+	public static int priorityOf(boolean visible, long area) {
+		if (!visible) {
+			return PRIORITY_HIDDEN;
+		}
+		return 1 + (64 - Long.numberOfLeadingZeros(Math.max(area, 0)));
+	}
+
+	/**
+	 * Runs task once the decodes of higher priority and the ones requested later with the same priority have started.
+	 */
+	@AnyThread
+	public void execute(Runnable task, int priority) {
+		synchronized (queue) {
+			queue.add(new Job(task, priority, sequence++));
+		}
+		dispatch();
+	}
+
+	/**
+	 * Gets an executor running its tasks on this scheduler with the given priority.
+	 */
+	public Executor executor(final int priority) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				GifDecodeScheduler.this.execute(command, priority);
+			}
+		};
+	}
+
+	/**
+	 * Removes task if it has not started yet.
+	 *
+	 * @return true if task was waiting and will not run
+	 */
+	@AnyThread
+	public boolean cancel(Runnable task) {
+		synchronized (queue) {
+			for (Iterator<Job> it = queue.iterator(); it.hasNext();) {
+				if (it.next().task == task) {
+					it.remove();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void dispatch() {
+		while (true) {
+			final Job job;
+			synchronized (queue) {
+				if (running >= parallelism || queue.isEmpty()) {
+					return;
+				}
+				job = queue.poll();
+				running++;
+			}
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							job.task.run();
+						} finally {
+							synchronized (queue) {
+								running--;
+							}
+							dispatch();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// give the slot back and keep the job for the next dispatch
+				synchronized (queue) {
+					running--;
+					queue.add(job);
+				}
+				return;
+			}
+		}
+	}
+
+	private static ExecutorService newDefaultExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "gifplayer-decode-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -1,61 +1,88 @@
 package jp.tomorrowkey.android.gifplayer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 
-public class GifDecoder {
-	/**
-	 * File read status: No errors.
-	 */
-	public static final int STATUS_OK = 0;
-	/**
-	 * File read status: Error decoding file (may be partially decoded)
-	 */
-	public static final int STATUS_FORMAT_ERROR = 1;
-	/**
-	 * File read status: Unable to open source.
-	 */
-	public static final int STATUS_OPEN_ERROR = 2;
-	/** max decoder pixel stack size */
-	protected static final int MAX_STACK_SIZE = 4096;
-	protected InputStream in;
-	protected int status;
-	protected int width; // full image width
-	protected int height; // full image height
-	protected boolean gctFlag; // global color table used
-	protected int gctSize; // size of global color table
-	protected int loopCount = 1; // iterations; 0 = repeat forever
-	protected int[] gct; // global color table
-	protected int[] lct; // local color table
-	protected int[] act; // active color table
-	protected int bgIndex; // background color index
-	protected int bgColor; // background color
-	protected int lastBgColor; // previous bg color
-	protected int pixelAspect; // pixel aspect ratio
-	protected boolean lctFlag; // local color table flag
-	protected boolean interlace; // interlace flag
-	protected int lctSize; // local color table size
-	protected int ix, iy, iw, ih; // current image rectangle
-	protected int lrx, lry, lrw, lrh;
+/**
+ * Reads GIFs into bitmaps for playback. The frames composited by {@link GifReader} are kept as bitmaps taken from a
+ * {@link GifBitmapPool}, as palette indices or as the regions changed from the previous frame, and are handed out as
+ * bitmaps to draw.
+ */
+public class GifDecoder extends GifReader {
+	private static final int FRAMES_MAGIC = 0x47494646; // "GIFF"
+	private static final int FRAMES_VERSION = 3;
+	private static final int INDEXED_FRAME = -1; // written in place of the config of indexed frames
+	private static final int DELTA_FRAME = -2; // written in place of the config of delta frames
+	/** with delta frames, a full frame is kept at least every this many frames */
+	protected static final int SNAPSHOT_INTERVAL = 16;
 	protected Bitmap image; // current frame
-	protected Bitmap lastBitmap; // previous frame
-	protected byte[] block = new byte[256]; // current data block
-	protected int blockSize = 0; // block size last graphic control extension info
-	protected int dispose = 0; // 0=no action; 1=leave in place; 2=restore to bg; 3=restore to prev
-	protected int lastDispose = 0;
-	protected boolean transparency = false; // use transparent color
-	protected int delay = 0; // delay in milliseconds
-	protected int transIndex; // transparent color index
-	// LZW decoder working arrays
-	protected short[] prefix;
-	protected byte[] suffix;
-	protected byte[] pixelStack;
-	protected byte[] pixels;
-	protected Vector<GifFrame> frames; // frames read from current file
-	protected int frameCount;
+	protected Config config; // frame bitmap config, null to choose per frame
+	protected boolean indexed; // keep frames as palette indices instead of bitmaps
+	private final IndexedFrameSink indexer = new IndexedFrameSink(); // converts the frames kept as indices
+	protected boolean delta; // keep only the changed region of frames
+	protected int[] framePatch; // changed pixels of the current frame, if kept as a delta
+	protected int patchX, patchY, patchWidth, patchHeight; // region of framePatch in the frame
+	protected int deltaRun; // delta frames since the last full frame
+	private int[] displayRow; // one row of a frame being expanded
+	private Bitmap displayFrame; // frames expanded by getFrame(int)
+	private int displayFrameIndex = -1; // frame held by displayFrame
+	// frames read from current file, replaced by a larger copy when full; read decodedCount first, then this
+	private volatile GifFrame[] frames;
+	private int addedCount; // frames added by the reading thread
+	protected long[] frameEnds; // end time of each frame from the start of a loop, using safe delays
+	protected volatile int decodedCount; // frames that can be drawn while reading
+	protected volatile boolean complete; // read has ended
+	private final CopyOnWriteArrayList<FrameListener> frameListeners = new CopyOnWriteArrayList<FrameListener>();
+	// streaming playback
+	private Bitmap currentFrame; // frame handed out last
+	private int currentIndex = -1;
+	private Bitmap readyFrame; // decoded ahead of currentFrame and not handed out yet
+	private int readyIndex = -1;
+	private int requestedIndex = -1; // frame asked for but not decoded yet, or -1
+	private boolean streamDecoding; // streamDecoder is queued or running
+	private boolean streamReleased; // frames were recycled; streamDecoder stops
+	private final Runnable streamDecoder = new Runnable() {
+		@Override
+		public void run() {
+			decodeStreamFrame();
+		}
+	};
+	protected GifBitmapPool bitmapPool = GifBitmapPool.getInstance(); // source of frame bitmaps
+	private int refCount = 1;
+
+	/** decodes the next frame of streaming decoders in the background */
+	private static final ExecutorService STREAM_EXECUTOR = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "gifplayer-stream");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Receives the progress of a read, so that playback can start before the last frame has been decoded.
+	 */
+	public interface FrameListener {
+		/**
+		 * Called on the decoding thread after each decoded frame, and once more when the read has ended (see
+		 * {@link GifDecoder#isComplete()}). Streaming decoders call it on their background thread whenever a frame
+		 * that {@link GifDecoder#getFrame(int)} could not return yet has been decoded.
+		 */
+		void onFramesDecoded(GifDecoder decoder);
+	}
 
 	private static class GifFrame {
 		public GifFrame(Bitmap im, int del) {
@@ -63,7 +90,26 @@ public class GifDecoder {
 			delay = del;
 		}
 
-		public Bitmap image;
+		public GifFrame(byte[] ind, int[] pal, int del) {
+			indices = ind;
+			palette = pal;
+			delay = del;
+		}
+
+		public GifFrame(int[] pat, int x, int y, int w, int h, int del) {
+			patch = pat;
+			px = x;
+			py = y;
+			pw = w;
+			ph = h;
+			delay = del;
+		}
+
+		public Bitmap image; // null if indexed or delta
+		public byte[] indices;
+		public int[] palette; // may be shared with the neighboring frames
+		public int[] patch; // pixels changed from the previous frame
+		public int px, py, pw, ph; // region of patch
 		public int delay;
 	}
 
@@ -75,20 +121,224 @@ public class GifDecoder {
 	 * @return delay in milliseconds
 	 */
 	public int getDelay(int n) {
-		delay = -1;
-		if ((n >= 0) && (n < frameCount)) {
-			delay = frames.elementAt(n).delay;
+		if (streaming) {
+			return (n >= 0) && (n < frameCount) ? frameIndex.getDelay(n) : -1;
+		}
+		return (n >= 0) && (n < decodedCount) ? frames[n].delay : -1;
+	}
+
+	/**
+	 * Gets display duration for specified frame, {@link #SAFE_DELAY} if it has no positive delay.
+	 * 
+	 * @param n
+	 *          int index of frame
+	 * @return delay in milliseconds
+	 */
+	public int getSafeDelay(int n) {
+		int delay = getDelay(n);
+		return delay > 0 ? delay : SAFE_DELAY;
+	}
+
+	/**
+	 * Gets the display duration of one loop of all frames, using safe delays.
+	 * 
+	 * @return duration in milliseconds
+	 */
+	public long getDuration() {
+		int count = decodedCount;
+		return count > 0 ? frameEnds[count - 1] : 0;
+	}
+
+	/**
+	 * Gets the time frame n starts being displayed from the start of a loop.
+	 * 
+	 * @return time in milliseconds
+	 */
+	public long getFrameStart(int n) {
+		return n > 0 ? frameEnds[n - 1] : 0;
+	}
+
+	/**
+	 * Gets the frame displayed at the given time from the start of playback, repeating the loop of the frames decoded
+	 * so far.
+	 * 
+	 * @return index of frame, 0 if there is none
+	 */
+	public int getFrameIndexAt(long time) {
+		int count = decodedCount;
+		if (count <= 0 || time <= 0) {
+			return 0;
 		}
-		return delay;
+		long[] ends = frameEnds;
+		time %= ends[count - 1];
+		int i = Arrays.binarySearch(ends, 0, count, time);
+		// frame i is displayed until frameEnds[i], excluded
+		return i >= 0 ? i + 1 : -(i + 1);
 	}
 	
 	/**
-	 * Gets the number of frames read from file.
+	 * Gets the number of frames that can be drawn. While another thread reads the data, this is the number of frames
+	 * decoded so far; frames below it and their delays and timeline never change.
 	 * 
 	 * @return frame count
 	 */
-	public int getFrameCount() {
-		return frameCount;
+	public int getDecodedFrameCount() {
+		return decodedCount;
+	}
+
+	/**
+	 * @return true once the read has ended, successfully or not
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Adds a listener notified of the frames decoded by a read. It may be added while another thread reads; if
+	 * {@link #isComplete()} is true after adding, the read has already ended.
+	 */
+	public void addFrameListener(FrameListener listener) {
+		frameListeners.add(listener);
+	}
+
+	public void removeFrameListener(FrameListener listener) {
+		frameListeners.remove(listener);
+	}
+
+	/**
+	 * Sets the config of the frame bitmaps. With null (the default) each frame is stored as RGB_565 when its
+	 * composited image has no transparent pixel and as ARGB_8888 otherwise. Takes effect from the next read.
+	 */
+	public void setConfig(Config config) {
+		this.config = config;
+	}
+
+	public Config getConfig() {
+		return config;
+	}
+
+	/**
+	 * Keeps each frame as one byte per pixel, indices into a palette of its colors, instead of a bitmap. A frame is
+	 * expanded into a bitmap only when drawn (see {@link #getFrame(int, Bitmap)}), so a GIF takes a quarter of the
+	 * memory of ARGB_8888 frames. Frames whose composited image has more than 256 colors, e.g. when blended by
+	 * {@link #setTargetSize(int, int)}, are stored as bitmaps anyway. Ignored by streaming decoders. Takes effect from
+	 * the next read.
+	 */
+	public void setIndexed(boolean indexed) {
+		this.indexed = indexed;
+	}
+
+	public boolean isIndexed() {
+		return indexed && !streaming;
+	}
+
+	/**
+	 * Keeps only the region each frame changes from the previous one, instead of the whole frame. Frames are rebuilt
+	 * when drawn by applying these patches in order to a display bitmap (see {@link #getFrame(int, Bitmap, int)}), so
+	 * memory follows the number of pixels that change rather than the frame count. A full frame is kept every
+	 * {@link #SNAPSHOT_INTERVAL} frames, and whenever a frame changes more than half of the pixels, which bounds the
+	 * patches applied to show any frame. Ignored by streaming decoders. Takes effect from the next read.
+	 */
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+
+	public boolean isDelta() {
+		return delta && !streaming;
+	}
+
+	/**
+	 * Creates a bitmap for {@link #getFrame(int, Bitmap, int)} to expand indexed and delta frames into, owned by the
+	 * caller.
+	 */
+	public Bitmap createDisplayBitmap() {
+		return Bitmap.createBitmap(Math.max(frameWidth, 1), Math.max(frameHeight, 1),
+				config != null ? config : Config.ARGB_8888);
+	}
+
+	/**
+	 * Gets the number of bytes held by the decoded frames.
+	 * 
+	 * @return byte count, 0 for streaming decoders
+	 */
+	public int getByteCount() {
+		int n = decodedCount;
+		GifFrame[] table = frames;
+		int count = 0;
+		int[] lastPalette = null;
+		for (int i = 0; i < n; i++) {
+			GifFrame frame = table[i];
+			if (frame.image != null) {
+				count += GifBitmapPool.byteCountOf(frame.image);
+			} else if (frame.patch != null) {
+				count += frame.patch.length * 4;
+			} else {
+				count += frame.indices.length;
+				if (frame.palette != lastPalette) {
+					count += frame.palette.length * 4;
+					lastPalette = frame.palette;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Sets the pool frame bitmaps are taken from and returned to. Must be called before {@link #read(GifSource)}.
+	 */
+	public void setBitmapPool(GifBitmapPool bitmapPool) {
+		this.bitmapPool = bitmapPool;
+	}
+
+	/**
+	 * Adds a reference to this decoder. A new decoder holds one reference owned by its creator; every holder must
+	 * call {@link #release()} once it stops drawing the frames.
+	 */
+	public synchronized void acquire() {
+		refCount++;
+	}
+
+	/**
+	 * Drops a reference to this decoder. When the last one is dropped the frame bitmaps are returned to the pool and
+	 * the decoder must not be used anymore.
+	 */
+	public synchronized void release() {
+		refCount--;
+		if (refCount == 0) {
+			recycle();
+		}
+	}
+
+	/**
+	 * Returns all frame bitmaps to the pool, and closes the source of a paused read.
+	 */
+	protected synchronized void recycle() {
+		abortRead();
+		if (streaming) {
+			// a frame being decoded is returned by streamDecoder
+			streamReleased = true;
+			bitmapPool.put(readyFrame);
+			bitmapPool.put(currentFrame);
+			readyFrame = null;
+			readyIndex = -1;
+			currentFrame = null;
+			currentIndex = -1;
+			requestedIndex = -1;
+		} else {
+			int n = decodedCount;
+			GifFrame[] table = frames;
+			for (int i = 0; i < n; i++) {
+				bitmapPool.put(table[i].image);
+			}
+			frames = null;
+			addedCount = 0;
+			decodedCount = 0;
+			frameCount = 0;
+			bitmapPool.put(displayFrame);
+			displayFrame = null;
+			displayFrameIndex = -1;
+		}
+		image = null;
 	}
 
 	/**
@@ -101,540 +351,629 @@ public class GifDecoder {
 	}
 
 	/**
-	 * Gets the "Netscape" iteration count, if any. A count of 0 means repeat indefinitiely.
+	 * Enables just-in-time frame decoding. Must be called before {@link #read(GifSource)}.
 	 * 
-	 * @return iteration count if one was specified, else 1.
+	 * In streaming mode only the current frame and the next one are kept in memory. The next frame is decoded in the
+	 * background while the current one is shown, so memory use depends on the canvas size instead of the frame count.
+	 * Getting a frame never waits for decoding: until a frame other than the next one has been decoded in the
+	 * background, the frame returned last is returned again, and the frame listeners are notified once it is ready.
+	 * 
+	 * @param streaming
+	 *          true to decode frames just in time
 	 */
-	public int getLoopCount() {
-		return loopCount;
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
 	}
 
 	/**
-	 * Creates new frame image from current data (and previous frames as specified by their disposition codes).
+	 * Keeps the composited frame as a bitmap, as palette indices or as a delta, or makes it the current image of a
+	 * streaming decoder.
 	 */
-	protected void setPixels() {
-		// expose destination image's pixels as int array
-		int[] dest = new int[width * height];
-		// fill in starting image contents based on last image's dispose code
-		if (lastDispose > 0) {
-			if (lastDispose == 3) {
-				// use image before last
-				int n = frameCount - 2;
-				if (n > 0) {
-					lastBitmap = getFrame(n - 1);
-				} else {
-					lastBitmap = null;
-				}
-			}
-			if (lastBitmap != null) {
-				lastBitmap.getPixels(dest, 0, width, 0, 0, width, height);
-				// copy pixels
-				if (lastDispose == 2) {
-					// fill last image rect area with background color
-					int c = 0;
-					if (!transparency) {
-						c = lastBgColor;
-					}
-					for (int i = 0; i < lrh; i++) {
-						int n1 = (lry + i) * width + lrx;
-						int n2 = n1 + lrw;
-						for (int k = n1; k < n2; k++) {
-							dest[k] = c;
-						}
-					}
-				}
+	@Override
+	protected void onFrame(int[] pixels, int delay) {
+		framePatch = null;
+		image = null;
+		if (delta && !streaming && patchFrame(crx, cry, crr, crb)) {
+			addFrame(new GifFrame(framePatch, patchX, patchY, patchWidth, patchHeight, delay));
+		} else if (indexed && !streaming && indexer.indexFrame(pixels, frameWidth * frameHeight)) {
+			addFrame(new GifFrame(indexer.frameIndices, indexer.framePalette, delay));
+		} else {
+			image = bitmapPool.get(frameWidth, frameHeight, getFrameConfig());
+			image.setPixels(pixels, 0, frameWidth, 0, 0, frameWidth, frameHeight);
+			if (!streaming) {
+				addFrame(new GifFrame(image, delay));
 			}
 		}
-		// copy each source line to the appropriate place in the destination
-		int pass = 1;
-		int inc = 8;
-		int iline = 0;
-		for (int i = 0; i < ih; i++) {
-			int line = i;
-			if (interlace) {
-				if (iline >= ih) {
-					pass++;
-					switch (pass) {
-					case 2:
-						iline = 4;
-						break;
-					case 3:
-						iline = 2;
-						inc = 4;
-						break;
-					case 4:
-						iline = 1;
-						inc = 2;
-						break;
-					default:
-						break;
-					}
-				}
-				line = iline;
-				iline += inc;
-			}
-			line += iy;
-			if (line < height) {
-				int k = line * width;
-				int dx = k + ix; // start of line in dest
-				int dlim = dx + iw; // end of dest line
-				if ((k + width) < dlim) {
-					dlim = k + width; // past dest edge
-				}
-				int sx = i * iw; // start of line in source
-				while (dx < dlim) {
-					// map color and insert in destination
-					int index = ((int) pixels[sx++]) & 0xff;
-					int c = act[index];
-					if (c != 0) {
-						dest[dx] = c;
-					}
-					dx++;
-				}
-			}
+	}
+
+	/**
+	 * The opacity of the frames only chooses their config when none is set.
+	 */
+	@Override
+	protected boolean isOpacityNeeded() {
+		return config == null;
+	}
+
+	/**
+	 * Copies the changed region of the frame into framePatch, unless a full frame is due.
+	 * 
+	 * @return false if the frame is to be kept in full
+	 */
+	private boolean patchFrame(int left, int top, int right, int bottom) {
+		int s = sampleSize;
+		int pl = left / s;
+		int pt = top / s;
+		int pr = Math.max(Math.min((right + s - 1) / s, frameWidth), pl);
+		int pb = Math.max(Math.min((bottom + s - 1) / s, frameHeight), pt);
+		int w = pr - pl;
+		int h = pb - pt;
+		if ((frameCount <= 1) || (deltaRun + 1 >= SNAPSHOT_INTERVAL) || (w * h * 2 > frameWidth * frameHeight)) {
+			deltaRun = 0;
+			return false;
 		}
-		image = Bitmap.createBitmap(dest, width, height, Config.ARGB_4444);
+		int[] src = getFramePixels();
+		int[] patch = new int[w * h];
+		for (int y = 0; y < h; y++) {
+			System.arraycopy(src, (pt + y) * frameWidth + pl, patch, y * w, w);
+		}
+		framePatch = patch;
+		patchX = pl;
+		patchY = pt;
+		patchWidth = w;
+		patchHeight = h;
+		deltaRun++;
+		return true;
 	}
 
 	/**
-	 * Gets the image contents of frame n.
+	 * Gets the config of the bitmap receiving the current canvas.
+	 */
+	protected Config getFrameConfig() {
+		if (config != null) {
+			return config;
+		}
+		return canvasOpaque ? Config.RGB_565 : Config.ARGB_8888;
+	}
+
+	/**
+	 * Gets the image contents of frame n. Indexed and delta frames are expanded into a bitmap owned by this decoder,
+	 * which holds only the last one expanded; callers sharing the decoder should use
+	 * {@link #getFrame(int, Bitmap, int)}.
 	 * 
 	 * @return BufferedBitmap representation of frame, or null if n is invalid.
 	 */
 	public Bitmap getFrame(int n) {
-		if (frameCount <= 0)
-			return null;
-		n = n % frameCount;
-		return ((GifFrame) frames.elementAt(n)).image;
+		return getFrame(n, null);
 	}
 
 	/**
-	 * Reads GIF image from stream
+	 * Gets the image contents of frame n, expanding an indexed frame (see {@link #setIndexed(boolean)}) into display.
+	 * Delta frames are rebuilt from the last full frame.
 	 * 
-	 * @param is
-	 *          containing GIF file.
-	 * @return read status code (0 = no errors)
+	 * @param display
+	 *          from {@link #createDisplayBitmap()}, or null to expand into a bitmap owned by this decoder
+	 * @return the bitmap of frame n, display (or the decoder's own bitmap) if the frame is indexed or delta, or null if
+	 *         n is invalid.
 	 */
-	public int read(InputStream is) {
-		init();
-		if (is != null) {
-			in = is;
-			readHeader();
-			if (!err()) {
-				readContents();
-				if (frameCount < 0) {
-					status = STATUS_FORMAT_ERROR;
-				}
+	public Bitmap getFrame(int n, Bitmap display) {
+		return getFrame(n, display, -1);
+	}
+
+	/**
+	 * Gets the image contents of frame n, expanding an indexed or delta frame (see {@link #setIndexed(boolean)} and
+	 * {@link #setDelta(boolean)}) into display. A delta frame following the frame display holds is built by applying
+	 * the patches in between, so playing the frames in order applies one patch per frame.
+	 * 
+	 * @param display
+	 *          from {@link #createDisplayBitmap()}, or null to expand into a bitmap owned by this decoder
+	 * @param shown
+	 *          the frame display holds, i.e. the last frame this method returned display for, or -1
+	 * @return the bitmap of frame n, display (or the decoder's own bitmap) if the frame is indexed or delta, or null if
+	 *         n is invalid.
+	 */
+	public Bitmap getFrame(int n, Bitmap display, int shown) {
+		if (streaming) {
+			if (frameCount <= 0)
+				return null;
+			return getStreamFrame(n % frameCount);
+		}
+		int count = decodedCount;
+		if (count <= 0)
+			return null;
+		n %= count;
+		GifFrame frame = frames[n];
+		if (frame.image != null) {
+			return frame.image;
+		}
+		return expandFrame(n, display, shown);
+	}
+
+	private synchronized Bitmap expandFrame(int n, Bitmap display, int shown) {
+		if (display == null) {
+			if (displayFrame == null) {
+				displayFrame = bitmapPool.get(frameWidth, frameHeight, config != null ? config : Config.ARGB_8888);
 			}
-		} else {
-			status = STATUS_OPEN_ERROR;
+			display = displayFrame;
+			shown = displayFrameIndex;
 		}
-		try {
-			is.close();
-		} catch (Exception e) {
+		// back to the frame display holds or to the last full frame
+		GifFrame[] table = frames;
+		int start = n;
+		while ((table[start].patch != null) && (start != shown)) {
+			start--;
 		}
-		return status;
+		if (start != shown) {
+			drawFullFrame(table[start], display);
+		}
+		for (int i = start + 1; i <= n; i++) {
+			GifFrame frame = table[i];
+			display.setPixels(frame.patch, 0, frame.pw, frame.px, frame.py, frame.pw, frame.ph);
+		}
+		if (display == displayFrame) {
+			displayFrameIndex = n;
+		}
+		return display;
 	}
 
-	/**
-	 * Decodes LZW image data into pixel array. Adapted from John Cristy's BitmapMagick.
-	 */
-	protected void decodeBitmapData() {
-		int nullCode = -1;
-		int npix = iw * ih;
-		int available, clear, code_mask, code_size, end_of_information, in_code, old_code, bits, code, count, i, datum, data_size, first, top, bi, pi;
-		if ((pixels == null) || (pixels.length < npix)) {
-			pixels = new byte[npix]; // allocate new pixel array
-		}
-		if (prefix == null) {
-			prefix = new short[MAX_STACK_SIZE];
-		}
-		if (suffix == null) {
-			suffix = new byte[MAX_STACK_SIZE];
-		}
-		if (pixelStack == null) {
-			pixelStack = new byte[MAX_STACK_SIZE + 1];
-		}
-		// Initialize GIF data stream decoder.
-		data_size = read();
-		clear = 1 << data_size;
-		end_of_information = clear + 1;
-		available = clear + 2;
-		old_code = nullCode;
-		code_size = data_size + 1;
-		code_mask = (1 << code_size) - 1;
-		for (code = 0; code < clear; code++) {
-			prefix[code] = 0; // XXX ArrayIndexOutOfBoundsException
-			suffix[code] = (byte) code;
-		}
-		// Decode GIF pixel stream.
-		datum = bits = count = first = top = pi = bi = 0;
-		for (i = 0; i < npix;) {
-			if (top == 0) {
-				if (bits < code_size) {
-					// Load bytes until there are enough bits for a code.
-					if (count == 0) {
-						// Read a new data block.
-						count = readBlock();
-						if (count <= 0) {
-							break;
-						}
-						bi = 0;
-					}
-					datum += (((int) block[bi]) & 0xff) << bits;
-					bits += 8;
-					bi++;
-					count--;
-					continue;
-				}
-				// Get the next code.
-				code = datum & code_mask;
-				datum >>= code_size;
-				bits -= code_size;
-				// Interpret the code
-				if ((code > available) || (code == end_of_information)) {
-					break;
-				}
-				if (code == clear) {
-					// Reset decoder.
-					code_size = data_size + 1;
-					code_mask = (1 << code_size) - 1;
-					available = clear + 2;
-					old_code = nullCode;
-					continue;
-				}
-				if (old_code == nullCode) {
-					pixelStack[top++] = suffix[code];
-					old_code = code;
-					first = code;
-					continue;
-				}
-				in_code = code;
-				if (code == available) {
-					pixelStack[top++] = (byte) first;
-					code = old_code;
-				}
-				while (code > clear) {
-					pixelStack[top++] = suffix[code];
-					code = prefix[code];
-				}
-				first = ((int) suffix[code]) & 0xff;
-				// Add a new string to the string table,
-				if (available >= MAX_STACK_SIZE) {
-					break;
-				}
-				pixelStack[top++] = (byte) first;
-				prefix[available] = (short) old_code;
-				suffix[available] = (byte) first;
-				available++;
-				if (((available & code_mask) == 0) && (available < MAX_STACK_SIZE)) {
-					code_size++;
-					code_mask += available;
-				}
-				old_code = in_code;
+	private void drawFullFrame(GifFrame frame, Bitmap display) {
+		int w = frameWidth;
+		int h = frameHeight;
+		if ((displayRow == null) || (displayRow.length < w)) {
+			displayRow = new int[w];
+		}
+		int[] row = displayRow;
+		if (frame.image != null) {
+			for (int y = 0; y < h; y++) {
+				frame.image.getPixels(row, 0, w, 0, y, w, 1);
+				display.setPixels(row, 0, w, 0, y, w, 1);
 			}
-			// Pop a pixel off the pixel stack.
-			top--;
-			pixels[pi++] = pixelStack[top];
-			i++;
+			return;
 		}
-		for (i = pi; i < npix; i++) {
-			pixels[i] = 0; // clear missing pixels
+		byte[] indices = frame.indices;
+		int[] palette = frame.palette;
+		for (int y = 0, i = 0; y < h; y++) {
+			for (int x = 0; x < w; x++, i++) {
+				row[x] = palette[indices[i] & 0xff];
+			}
+			display.setPixels(row, 0, w, 0, y, w, 1);
 		}
 	}
 
 	/**
-	 * Returns true if an error was encountered during reading/decoding
+	 * Gets frame n of a streaming decoder without waiting for it. If it has not been decoded yet, the frame returned
+	 * last is returned again and n is decoded in the background.
 	 */
-	protected boolean err() {
-		return status != STATUS_OK;
+	private synchronized Bitmap getStreamFrame(int n) {
+		if (n == currentIndex) {
+			return currentFrame;
+		}
+		if ((readyFrame != null) && (distance(currentIndex, readyIndex) <= distance(currentIndex, n))) {
+			// the frame decoded ahead is on the way to n
+			bitmapPool.put(currentFrame);
+			currentFrame = readyFrame;
+			currentIndex = readyIndex;
+			readyFrame = null;
+			readyIndex = -1;
+		}
+		requestedIndex = n == currentIndex ? -1 : n;
+		scheduleStreamDecode();
+		return currentFrame;
 	}
 
 	/**
-	 * Initializes or re-initializes reader
+	 * @return number of frames from frame a forward to frame b, wrapping around after the last frame
 	 */
-	protected void init() {
-		status = STATUS_OK;
-		frameCount = 0;
-		frames = new Vector<GifFrame>();
-		gct = null;
-		lct = null;
+	private int distance(int a, int b) {
+		return (b - a + frameCount) % frameCount;
 	}
 
-	/**
-	 * Reads a single byte from the input stream.
-	 */
-	protected int read() {
-		int curByte = 0;
-		try {
-			curByte = in.read();
-		} catch (Exception e) {
-			status = STATUS_FORMAT_ERROR;
+	private synchronized void scheduleStreamDecode() {
+		if (!streamDecoding && !streamReleased && frameCount > 1) {
+			streamDecoding = true;
+			STREAM_EXECUTOR.execute(streamDecoder);
 		}
-		return curByte;
 	}
 
 	/**
-	 * Reads next variable length block from input.
-	 * 
-	 * @return number of bytes stored in "buffer"
+	 * Decodes one frame of a streaming decoder on the stream thread: towards the frame requested last, or else the
+	 * frame after the current one. Runs again until both are decoded, taking turns with the other streaming decoders.
 	 */
-	protected int readBlock() {
-		blockSize = read();
-		int n = 0;
-		if (blockSize > 0) {
-			try {
-				int count = 0;
-				while (n < blockSize) {
-					count = in.read(block, n, blockSize - n);
-					if (count == -1) {
-						break;
-					}
-					n += count;
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
+	private void decodeStreamFrame() {
+		int target;
+		synchronized (this) {
+			if (streamReleased) {
+				streamDecoding = false;
+				return;
+			}
+			if (requestedIndex >= 0) {
+				target = requestedIndex;
+			} else if (readyFrame == null) {
+				target = (currentIndex + 1) % frameCount;
+			} else {
+				streamDecoding = false;
+				return;
 			}
-			if (n < blockSize) {
+			if (target <= streamIndex) {
+				streamIndex = frameCount - 1; // wrap around on next decode
+			}
+		}
+		// only this thread decodes once the read has ended, so the reader state needs no lock
+		Bitmap frame;
+		try {
+			frame = decodeNextFrame();
+		} catch (RuntimeException e) {
+			synchronized (this) {
 				status = STATUS_FORMAT_ERROR;
+				streamDecoding = false;
+			}
+			return;
+		}
+		boolean arrived = false;
+		synchronized (this) {
+			if (streamReleased || (streamIndex != target)) {
+				bitmapPool.put(frame); // a frame passed on the way
+			} else {
+				bitmapPool.put(readyFrame);
+				readyFrame = frame;
+				readyIndex = target;
+				if (requestedIndex == target) {
+					requestedIndex = -1;
+					arrived = true;
+				}
 			}
+			STREAM_EXECUTOR.execute(streamDecoder);
+		}
+		if (arrived) {
+			notifyFrameListeners();
 		}
-		return n;
 	}
 
 	/**
-	 * Reads color table as 256 RGB integer values
+	 * Decodes the frame following the last decoded one, wrapping around to the first frame after the last.
 	 * 
-	 * @param ncolors
-	 *          int number of colors to read
-	 * @return int array containing 256 colors (packed ARGB with full alpha)
-	 */
-	protected int[] readColorTable(int ncolors) {
-		int nbytes = 3 * ncolors;
-		int[] tab = null;
-		byte[] c = new byte[nbytes];
-		int n = 0;
-		try {
-			n = in.read(c);
-		} catch (Exception e) {
-			e.printStackTrace();
+	 * @return the new frame, or the previous one if the data is broken.
+	 */
+	protected Bitmap decodeNextFrame() {
+		int n = streamIndex + 1;
+		if (n >= frameCount) {
+			rewind();
+			n = 0;
 		}
-		if (n < nbytes) {
-			status = STATUS_FORMAT_ERROR;
-		} else {
-			tab = new int[256]; // max size to avoid bounds checks
-			int i = 0;
-			int j = 0;
-			while (i < ncolors) {
-				int r = ((int) c[j++]) & 0xff;
-				int g = ((int) c[j++]) & 0xff;
-				int b = ((int) c[j++]) & 0xff;
-				tab[i++] = 0xff000000 | (r << 16) | (g << 8) | b;
+		image = null;
+		decodeFrame(n);
+		if (image == null) {
+			// broken data; show what has been composited so far
+			image = bitmapPool.get(frameWidth, frameHeight, getFrameConfig());
+			if (getFramePixels() != null) {
+				image.setPixels(getFramePixels(), 0, frameWidth, 0, 0, frameWidth, frameHeight);
+			} else {
+				image.eraseColor(0);
 			}
 		}
-		return tab;
+		return image;
 	}
 
-	/**
-	 * Main file parser. Reads GIF content blocks.
-	 */
-	protected void readContents() {
-		// read GIF file content blocks
-		boolean done = false;
-		while (!(done || err())) {
-			int code = read();
-			switch (code) {
-			case 0x2C: // image separator
-				readBitmap();
-				break;
-			case 0x21: // extension
-				code = read();
-				switch (code) {
-				case 0xf9: // graphics control extension
-					readGraphicControlExt();
-					break;
-				case 0xff: // application extension
-					readBlock();
-					String app = "";
-					for (int i = 0; i < 11; i++) {
-						app += (char) block[i];
-					}
-					if (app.equals("NETSCAPE2.0")) {
-						readNetscapeExt();
-					} else {
-						skip(); // don't care
-					}
-					break;
-				case 0xfe:// comment extension
-					skip();
-					break;
-				case 0x01:// plain text extension
-					skip();
-					break;
-				default: // uninteresting extension
-					skip();
-				}
-				break;
-			case 0x3b: // terminator
-				done = true;
-				break;
-			case 0x00: // bad byte, but keep going and see what happens break;
-			default:
-				status = STATUS_FORMAT_ERROR;
-			}
+	@Override
+	protected void rewind() {
+		super.rewind();
+		indexer.resetPalette();
+		deltaRun = 0;
+		image = null;
+	}
+
+	@Override
+	protected void readSource(GifSource source) {
+		if (streaming) {
+			readStream(source);
+		} else {
+			super.readSource(source);
 		}
 	}
 
 	/**
-	 * Reads Graphics Control Extension values
+	 * Publishes the timeline of all frames and notifies the listeners that the read has ended. Streaming decoders
+	 * start decoding the next frame in the background only now, so that the reader state has a single thread at a
+	 * time. Other decoders drop the working buffers of the read, which would otherwise stay with the decoder, e.g. in
+	 * {@link GifCache}, without being counted by {@link #getByteCount()}.
 	 */
-	protected void readGraphicControlExt() {
-		read(); // block size
-		int packed = read(); // packed fields
-		dispose = (packed & 0x1c) >> 2; // disposal method
-		if (dispose == 0) {
-			dispose = 1; // elect to keep old image if discretionary
+	@Override
+	protected void endRead() {
+		buildTimeline();
+		super.endRead();
+		if (!streaming) {
+			releaseBuffers();
+		}
+		complete = true;
+		notifyFrameListeners();
+		if (streaming && (currentFrame != null)) {
+			scheduleStreamDecode();
 		}
-		transparency = (packed & 1) != 0;
-		delay = readShort() * 10; // delay in milliseconds
-		transIndex = read(); // transparent color index
-		read(); // block terminator
 	}
 
 	/**
-	 * Reads GIF file header information.
+	 * Writes the decoded frames in a form read back by {@link #readFrames(ByteBuffer)}: a header with the sizes and
+	 * delays followed by the raw pixels of every frame, its palette and indices if indexed, or its region and patch if
+	 * delta. Only complete, non-streaming decoders can be written.
+	 * 
+	 * @param channel
+	 *          to write to; not closed
 	 */
-	protected void readHeader() {
-		String id = "";
-		for (int i = 0; i < 6; i++) {
-			id += (char) read();
+	public void writeFrames(WritableByteChannel channel) throws IOException {
+		if (streaming || !complete) {
+			throw new IllegalStateException("only complete decoders can be written");
 		}
-		if (!id.startsWith("GIF")) {
-			status = STATUS_FORMAT_ERROR;
-			return;
+		int count = decodedCount;
+		ByteBuffer header = ByteBuffer.allocate((9 + count * 3) * 4);
+		header.putInt(FRAMES_MAGIC).putInt(FRAMES_VERSION);
+		header.putInt(width).putInt(height).putInt(sampleSize).putInt(frameWidth).putInt(frameHeight);
+		header.putInt(loopCount).putInt(count);
+		GifFrame[] table = frames;
+		int maxByteCount = 0;
+		for (int i = 0; i < count; i++) {
+			GifFrame frame = table[i];
+			int byteCount;
+			if (frame.image != null) {
+				byteCount = GifBitmapPool.byteCountOf(frame.image);
+				header.putInt(frame.delay).putInt(frame.image.getConfig().ordinal()).putInt(byteCount);
+			} else if (frame.patch != null) {
+				byteCount = 16 + frame.patch.length * 4;
+				header.putInt(frame.delay).putInt(DELTA_FRAME).putInt(byteCount);
+			} else {
+				byteCount = 4 + frame.palette.length * 4 + frame.indices.length;
+				header.putInt(frame.delay).putInt(INDEXED_FRAME).putInt(byteCount);
+			}
+			maxByteCount = Math.max(maxByteCount, byteCount);
 		}
-		readLSD();
-		if (gctFlag && !err()) {
-			gct = readColorTable(gctSize);
-			bgColor = gct[bgIndex];
+		header.flip();
+		writeFully(channel, header);
+		ByteBuffer pixels = ByteBuffer.allocate(maxByteCount);
+		for (int i = 0; i < count; i++) {
+			GifFrame frame = table[i];
+			pixels.clear();
+			if (frame.image != null) {
+				frame.image.copyPixelsToBuffer(pixels);
+			} else if (frame.patch != null) {
+				pixels.putInt(frame.px).putInt(frame.py).putInt(frame.pw).putInt(frame.ph);
+				pixels.asIntBuffer().put(frame.patch);
+				pixels.position(pixels.position() + frame.patch.length * 4);
+			} else {
+				pixels.putInt(frame.palette.length);
+				pixels.asIntBuffer().put(frame.palette);
+				pixels.position(pixels.position() + frame.palette.length * 4);
+				pixels.put(frame.indices);
+			}
+			pixels.flip();
+			writeFully(channel, pixels);
+		}
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
 		}
 	}
 
 	/**
-	 * Reads next frame image
+	 * Reads frames written by {@link #writeFrames(WritableByteChannel)}, copying the pixels into frame bitmaps without
+	 * any decoding. The buffer is typically a mapped file.
+	 * 
+	 * @param buffer
+	 *          starting at the written frames; its position is not changed
+	 * @return read status code (0 = no errors)
 	 */
-	protected void readBitmap() {
-		ix = readShort(); // (sub)image position & size
-		iy = readShort();
-		iw = readShort();
-		ih = readShort();
-		int packed = read();
-		lctFlag = (packed & 0x80) != 0; // 1 - local color table flag interlace
-		lctSize = (int) Math.pow(2, (packed & 0x07) + 1);
-		// 3 - sort flag
-		// 4-5 - reserved lctSize = 2 << (packed & 7); // 6-8 - local color
-		// table size
-		interlace = (packed & 0x40) != 0;
-		if (lctFlag) {
-			lct = readColorTable(lctSize); // read table
-			act = lct; // make local table active
-		} else {
-			act = gct; // make global table active
-			if (bgIndex == transIndex) {
-				bgColor = 0;
+	public int readFrames(ByteBuffer buffer) {
+		init();
+		try {
+			ByteBuffer in = buffer.duplicate();
+			if (in.getInt() != FRAMES_MAGIC || in.getInt() != FRAMES_VERSION) {
+				status = STATUS_FORMAT_ERROR;
+				return status;
 			}
+			width = in.getInt();
+			height = in.getInt();
+			sampleSize = in.getInt();
+			frameWidth = in.getInt();
+			frameHeight = in.getInt();
+			loopCount = in.getInt();
+			int count = in.getInt();
+			if (count < 0 || count > in.remaining() / 12) {
+				status = STATUS_FORMAT_ERROR;
+				return status;
+			}
+			int[] delays = new int[count];
+			int[] kinds = new int[count];
+			int[] byteCounts = new int[count];
+			for (int i = 0; i < count; i++) {
+				delays[i] = in.getInt();
+				kinds[i] = in.getInt();
+				byteCounts[i] = in.getInt();
+			}
+			int offset = in.position();
+			int[] lastPalette = null;
+			for (int i = 0; i < count && !checkCancelled(); i++) {
+				in.limit(offset + byteCounts[i]).position(offset);
+				offset += byteCounts[i];
+				if (kinds[i] == DELTA_FRAME) {
+					int x = in.getInt();
+					int y = in.getInt();
+					int w = in.getInt();
+					int h = in.getInt();
+					if ((i == 0) || (x < 0) || (y < 0) || (w < 0) || (h < 0) || (x + w > frameWidth)
+							|| (y + h > frameHeight)) {
+						throw new IllegalArgumentException("invalid delta frame " + i);
+					}
+					int[] patch = new int[w * h];
+					in.asIntBuffer().get(patch);
+					delta = true;
+					frameCount++;
+					addFrame(new GifFrame(patch, x, y, w, h, delays[i]));
+					continue;
+				}
+				if (kinds[i] == INDEXED_FRAME) {
+					int[] palette = new int[in.getInt()];
+					if (palette.length > 256) {
+						throw new IllegalArgumentException("invalid palette size: " + palette.length);
+					}
+					in.asIntBuffer().get(palette);
+					in.position(in.position() + palette.length * 4);
+					if (Arrays.equals(palette, lastPalette)) {
+						palette = lastPalette; // shared as when decoded
+					}
+					byte[] indices = new byte[frameWidth * frameHeight];
+					in.get(indices);
+					lastPalette = palette;
+					indexed = true;
+					frameCount++;
+					addFrame(new GifFrame(indices, palette, delays[i]));
+					continue;
+				}
+				Bitmap frame = bitmapPool.get(frameWidth, frameHeight, Config.values()[kinds[i]]);
+				if (GifBitmapPool.byteCountOf(frame) != byteCounts[i]) {
+					// written on a device laying out the pixels differently
+					bitmapPool.put(frame);
+					status = STATUS_FORMAT_ERROR;
+					break;
+				}
+				frame.copyPixelsFromBuffer(in);
+				frameCount++;
+				addFrame(new GifFrame(frame, delays[i]));
+			}
+		} catch (RuntimeException e) {
+			// truncated or corrupted data
+			status = STATUS_FORMAT_ERROR;
+		} finally {
+			endRead();
 		}
-		int save = 0;
-		if (transparency) {
-			save = act[transIndex];
-			act[transIndex] = 0; // set transparent color if specified
-		}
-		if (act == null) {
-			status = STATUS_FORMAT_ERROR; // no color table defined
-		}
-		if (err()) {
-			return;
-		}
-		decodeBitmapData(); // decode pixel data
-		skip();
-		if (err()) {
-			return;
-		}
-		frameCount++;
-		// create new image to receive frame data
-		image = Bitmap.createBitmap(width, height, Config.ARGB_4444);
-		setPixels(); // transfer pixel data to image
-		frames.addElement(new GifFrame(image, delay)); // add image to frame
-		// list
-		if (transparency) {
-			act[transIndex] = save;
-		}
-		resetFrame();
+		return status;
 	}
 
 	/**
-	 * Reads Logical Screen Descriptor
+	 * Reads the metadata of a GIF without decoding any pixel data: the header, the graphic control extensions and the
+	 * loop count. Image data is skipped block by block, so this is cheap enough for the UI thread.
+	 * 
+	 * @param source
+	 *          containing GIF file.
+	 * @return metadata, or null if the header could not be read.
 	 */
-	protected void readLSD() {
-		// logical screen size
-		width = readShort();
-		height = readShort();
-		// packed fields
-		int packed = read();
-		gctFlag = (packed & 0x80) != 0; // 1 : global color table flag
-		// 2-4 : color resolution
-		// 5 : gct sort flag
-		gctSize = 2 << (packed & 7); // 6-8 : gct size
-		bgIndex = read(); // background color index
-		pixelAspect = read(); // pixel aspect ratio
+	public GifInfo probe(GifSource source) {
+		GifFrameIndex index = readIndex(source);
+		return index != null ? new GifInfo(index, loopCount) : null;
 	}
 
 	/**
-	 * Reads Netscape extenstion to obtain iteration count
+	 * Reads the metadata of a GIF without decoding any pixel data.
+	 * 
+	 * @param is
+	 *          containing GIF file.
+	 * @return metadata, or null if the header could not be read.
 	 */
-	protected void readNetscapeExt() {
-		do {
-			readBlock();
-			if (block[0] == 1) {
-				// loop count sub-block
-				int b1 = ((int) block[1]) & 0xff;
-				int b2 = ((int) block[2]) & 0xff;
-				loopCount = (b2 << 8) | b1;
-			}
-		} while ((blockSize > 0) && !err());
+	public GifInfo probe(InputStream is) {
+		return probe(is != null ? GifSource.from(is) : null);
+	}
+
+	/**
+	 * Sums up the frame delays so that the frame displayed at a given time is found by binary search.
+	 */
+	protected void buildTimeline() {
+		long[] ends = new long[Math.max(frameCount, 0)];
+		long end = 0;
+		for (int i = 0; i < ends.length; i++) {
+			end += getSafeDelay(i);
+			ends[i] = end;
+		}
+		frameEnds = ends;
+		decodedCount = ends.length;
 	}
 
 	/**
-	 * Reads next 16-bit value, LSB first
+	 * Keeps a frame read and publishes it.
 	 */
-	protected int readShort() {
-		// read 16-bit value, LSB first
-		return read() | (read() << 8);
+	private void addFrame(GifFrame frame) {
+		int n = addedCount;
+		GifFrame[] table = frames;
+		if (table == null || table.length == n) {
+			// grown into a copy; threads still holding the old array find every frame below the count they read
+			table = Arrays.copyOf(table != null ? table : new GifFrame[0], Math.max(16, n * 2));
+		}
+		table[n] = frame;
+		frames = table;
+		addedCount = n + 1;
+		publishFrame();
 	}
 
 	/**
-	 * Resets frame state for reading next image.
+	 * Makes the frame just added drawable by other threads and notifies the listeners.
 	 */
-	protected void resetFrame() {
-		lastDispose = dispose;
-		lrx = ix;
-		lry = iy;
-		lrw = iw;
-		lrh = ih;
-		lastBitmap = image;
-		lastBgColor = bgColor;
-		dispose = 0;
-		transparency = false;
-		delay = 0;
-		lct = null;
+	protected void publishFrame() {
+		int n = addedCount;
+		long[] ends = frameEnds;
+		if (ends == null || ends.length < n) {
+			ends = Arrays.copyOf(ends != null ? ends : new long[0], Math.max(16, n * 2));
+		}
+		int delay = frames[n - 1].delay;
+		ends[n - 1] = (n > 1 ? ends[n - 2] : 0) + (delay > 0 ? delay : SAFE_DELAY);
+		frameEnds = ends;
+		decodedCount = n; // publishes the frame and its end time
+		notifyFrameListeners();
+	}
+
+	private void notifyFrameListeners() {
+		for (FrameListener listener : frameListeners) {
+			listener.onFramesDecoded(this);
+		}
 	}
 
 	/**
-	 * Skips variable length blocks up to and including next zero length block.
+	 * Indexes the frames and decodes the first frame for streaming playback. Sources that cannot seek are copied into
+	 * memory first.
 	 */
-	protected void skip() {
-		do {
-			readBlock();
-		} while ((blockSize > 0) && !err());
+	protected void readStream(GifSource source) {
+		if (!source.isSeekable()) {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buf = new byte[4096];
+				int count;
+				while ((count = source.read(buf, 0, buf.length)) > 0) {
+					out.write(buf, 0, count);
+				}
+				source = GifSource.from(out.toByteArray());
+			} catch (IOException e) {
+				status = STATUS_OPEN_ERROR;
+				return;
+			}
+		}
+		in = source;
+		readHeader();
+		if (err()) {
+			return;
+		}
+		if (frameIndex != null && frameIndex.matches(source.length(), width, height, headerChecksum())) {
+			frameCount = frameIndex.getFrameCount();
+		} else {
+			readIndexContents();
+			frameIndex.setDataLength(source.length());
+		}
+		int scanStatus = status;
+		if (frameCount > 0 && scanStatus != STATUS_CANCELLED) {
+			rewind();
+			currentFrame = decodeNextFrame();
+			currentIndex = 0;
+		}
+		status = scanStatus;
 	}
+
+	@Override
+	protected void init() {
+		super.init();
+		frames = null;
+		addedCount = 0;
+		frameEnds = null;
+		decodedCount = 0;
+		complete = false;
+	}
+
 }
\ No newline at end of file
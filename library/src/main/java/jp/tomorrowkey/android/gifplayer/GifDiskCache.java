@@ -0,0 +1,282 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Optional LRU cache of decoded GIFs on disk, bounded by the total size of its files, so that GIFs seen in an earlier
+ * process are shown without being decoded again.
+ *
+ * Each entry is one file holding the composited frames as raw pixels (see
+ * {@link GifDecoder#writeFrames(java.nio.channels.WritableByteChannel)}). Reading one back maps the file and copies
+ * the pixels straight into the frame bitmaps. Entries are keyed like {@link GifCache}, so the key must change with
+ * the source data; entries written by another app version are ignored, since resource ids may change between them.
+ *
+ * Disabled unless set with {@link #setInstance(GifDiskCache)}. {@link GifLoader} then looks up every decode in it and
+ * stores the complete ones.
+ */
+public class GifDiskCache {
+
+	static final String TAG = "GifDiskCache";
+
+	private static final int MAGIC = 0x47494643; // "GIFC"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".gifc";
+	private static final long STALE_TEMP_AGE = 60 * 60 * 1000; // temp files untouched this long are abandoned
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static GifDiskCache instance;
+
+	private final File directory;
+	private final int appVersion;
+	private long maxSize;
+	private LinkedHashMap<String, Long> entries; // file name to file size, least recently used first
+	private long size;
+
+	/**
+	 * Gets the shared disk cache.
+	 *
+	 * @return the cache set by {@link #setInstance(GifDiskCache)}, or null if disabled
+	 */
+	public static synchronized GifDiskCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Enables the shared disk cache, or disables it with null.
+	 */
+	public static synchronized void setInstance(GifDiskCache cache) {
+		instance = cache;
+	}
+
+	/**
+	 * @param directory
+	 *          holding the cache files and nothing else, e.g. a subdirectory of the cache dir
+	 * @param maxSize
+	 *          maximum total byte size of the cache files
+	 * @param appVersion
+	 *          version of the app, e.g. its version code; entries of other versions are ignored
+	 */
+	public GifDiskCache(File directory, long maxSize, int appVersion) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.appVersion = appVersion;
+	}
+
+	/**
+	 * Reads the decoder cached for key. Its frames are read at once, so this is for worker threads.
+	 *
+	 * @return a new decoder owned by the caller, or null if none is cached
+	 */
+	@WorkerThread
+	public GifDecoder get(String key) {
+		final String name = fileNameOf(key);
+		synchronized (this) {
+			if (loadEntries().get(name) == null) {
+				return null;
+			}
+		}
+		final File file = new File(directory, name);
+		GifDecoder decoder = null;
+		try {
+			final FileInputStream in = new FileInputStream(file);
+			final MappedByteBuffer buffer;
+			try {
+				final FileChannel channel = in.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				in.close();
+			}
+			if (readHeader(buffer, key)) {
+				decoder = new GifDecoder();
+				decoder.readFrames(buffer.slice());
+			}
+		} catch (IOException e) {
+			Timber.tag(TAG).w(e, "failed to read %s", file);
+		} catch (RuntimeException e) {
+			// truncated header
+			Timber.tag(TAG).w(e, "failed to read %s", file);
+		}
+		if (decoder == null || decoder.status != GifDecoder.STATUS_OK) {
+			if (decoder != null) {
+				decoder.release();
+			}
+			remove(key);
+			return null;
+		}
+		// the modification time keeps the order of use for the next process
+		file.setLastModified(System.currentTimeMillis());
+		return decoder;
+	}
+
+	/**
+	 * Writes a complete decoder read without errors; anything else is ignored. The caller must hold a reference to
+	 * decoder until this returns.
+	 */
+	@WorkerThread
+	public void put(String key, GifDecoder decoder) {
+		if (decoder.isStreaming() || !decoder.isComplete() || decoder.status != GifDecoder.STATUS_OK) {
+			return;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Timber.tag(TAG).w("failed to create %s", directory);
+			return;
+		}
+		final String name = fileNameOf(key);
+		File temp = null;
+		try {
+			// written aside and renamed, so that a killed process leaves no broken entry
+			temp = File.createTempFile(name, ".tmp", directory);
+			final FileOutputStream out = new FileOutputStream(temp);
+			try {
+				final FileChannel channel = out.getChannel();
+				final byte[] keyBytes = key.getBytes(UTF_8);
+				final ByteBuffer header = ByteBuffer.allocate(16 + keyBytes.length);
+				header.putInt(MAGIC).putInt(VERSION).putInt(appVersion).putInt(keyBytes.length).put(keyBytes);
+				header.flip();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+				decoder.writeFrames(channel);
+			} finally {
+				out.close();
+			}
+			final File file = new File(directory, name);
+			if (!temp.renameTo(file)) {
+				throw new IOException("failed to rename " + temp + " to " + file);
+			}
+			temp = null;
+			synchronized (this) {
+				final Long previous = loadEntries().put(name, file.length());
+				if (previous != null) {
+					size -= previous;
+				}
+				size += file.length();
+				trimToSize(maxSize);
+			}
+		} catch (IOException e) {
+			Timber.tag(TAG).w(e, "failed to write %s", key);
+		} finally {
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	public synchronized void remove(String key) {
+		final String name = fileNameOf(key);
+		final Long previous = loadEntries().remove(name);
+		if (previous != null) {
+			size -= previous;
+		}
+		new File(directory, name).delete();
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized void evictAll() {
+		trimToSize(-1);
+	}
+
+	/**
+	 * @return total byte size of the cache files
+	 */
+	public synchronized long size() {
+		loadEntries();
+		return size;
+	}
+
+	private boolean readHeader(ByteBuffer buffer, String key) {
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != appVersion) {
+			return false;
+		}
+		final byte[] keyBytes = new byte[buffer.getInt()];
+		buffer.get(keyBytes);
+		// guards against colliding file names
+		return key.equals(new String(keyBytes, UTF_8));
+	}
+
+	/**
+	 * Lists the cache files on first use, ordered by their last use in earlier processes.
+	 */
+	private LinkedHashMap<String, Long> loadEntries() {
+		if (entries != null) {
+			return entries;
+		}
+		entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return entries;
+		}
+		final ArrayList<File> list = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().endsWith(SUFFIX)) {
+				list.add(file);
+			} else if (file.getName().endsWith(".tmp")
+					&& System.currentTimeMillis() - file.lastModified() > STALE_TEMP_AGE) {
+				// left by a killed process; recent ones may still be written by another instance
+				file.delete();
+			}
+		}
+		Collections.sort(list, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				final long l = lhs.lastModified();
+				final long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (File file : list) {
+			entries.put(file.getName(), file.length());
+			size += file.length();
+		}
+		trimToSize(maxSize);
+		return entries;
+	}
+
+	private void trimToSize(long maxSize) {
+		final Iterator<Map.Entry<String, Long>> it = loadEntries().entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			// least recently used first
+			final Map.Entry<String, Long> entry = it.next();
+			size -= entry.getValue();
+			it.remove();
+			new File(directory, entry.getKey()).delete();
+		}
+	}
+
+	private static String fileNameOf(String key) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+			final StringBuilder name = new StringBuilder(digest.length * 2 + SUFFIX.length());
+			for (byte b : digest) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return name.append(SUFFIX).toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every platform has SHA-1; the key in the file guards against collisions anyway
+			return Integer.toHexString(key.hashCode()) + SUFFIX;
+		}
+	}
+}
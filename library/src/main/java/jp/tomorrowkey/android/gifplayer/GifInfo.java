@@ -0,0 +1,95 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import android.graphics.Bitmap.Config;
+
+import java.util.Arrays;
+
+/**
+ * Metadata of a GIF read by {@link GifDecoder#probe(GifSource)} without decoding any pixel data: screen size, frame
+ * delays and loop count. Instances are immutable and can be shared between threads.
+ */
+public final class GifInfo {
+	private final int width;
+	private final int height;
+	private final int[] delays; // delay of each frame in milliseconds
+	private final long[] frameEnds; // end time of each frame from the start of a loop, using safe delays
+	private final int loopCount;
+
+	GifInfo(GifFrameIndex index, int loopCount) {
+		this.width = index.getWidth();
+		this.height = index.getHeight();
+		this.loopCount = loopCount;
+		int frameCount = index.getFrameCount();
+		delays = new int[frameCount];
+		frameEnds = new long[frameCount];
+		long end = 0;
+		for (int i = 0; i < frameCount; i++) {
+			int delay = index.getDelay(i);
+			delays[i] = delay;
+			end += delay > 0 ? delay : GifDecoder.SAFE_DELAY;
+			frameEnds[i] = end;
+		}
+	}
+
+	/**
+	 * @return logical screen width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return logical screen height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	public int getFrameCount() {
+		return delays.length;
+	}
+
+	/**
+	 * @return delay of frame n in milliseconds
+	 */
+	public int getDelay(int n) {
+		return delays[n];
+	}
+
+	/**
+	 * @return delays of all frames in milliseconds
+	 */
+	public int[] getDelays() {
+		return Arrays.copyOf(delays, delays.length);
+	}
+
+	/**
+	 * Gets the display duration of one loop of all frames, using safe delays as {@link GifDecoder#getDuration()}.
+	 *
+	 * @return duration in milliseconds
+	 */
+	public long getDuration() {
+		return frameEnds.length > 0 ? frameEnds[frameEnds.length - 1] : 0;
+	}
+
+	/**
+	 * Gets the "Netscape" iteration count, if any. A count of 0 means repeat indefinitely.
+	 *
+	 * @return iteration count if one was specified, else 1.
+	 */
+	public int getLoopCount() {
+		return loopCount;
+	}
+
+	/**
+	 * Estimates the byte size of all frames decoded with the given config and sample size (see
+	 * {@link GifDecoder#getSampleSize()}), as counted by {@link GifCache}. A null config counts as ARGB_8888, the
+	 * largest the automatic choice can make.
+	 */
+	public int getByteCount(Config config, int sampleSize) {
+		int bytesPerPixel = (config == Config.RGB_565 || config == Config.ARGB_4444) ? 2 : 4;
+		long frameWidth = (width + sampleSize - 1) / sampleSize;
+		long frameHeight = (height + sampleSize - 1) / sampleSize;
+		return (int) Math.min(frameWidth * frameHeight * bytesPerPixel * delays.length, Integer.MAX_VALUE);
+	}
+}
@@ -0,0 +1,241 @@
+package jp.tomorrowkey.android.gifplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.UiThread;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import timber.log.Timber;
+
+/**
+ * Runs at most one decode per source at a time. Requests for a source that is already being decoded wait for that
+ * decode, and its result is handed to every waiting callback on the UI thread and put into {@link GifCache}.
+ *
+ * The decoder is handed out as soon as its first frame has been decoded, while the rest are still being read (see
+ * {@link GifDecoder#isComplete()}), so that playback starts without waiting for the whole GIF. Only complete decoders
+ * are cached, and only if they were read without error.
+ *
+ * If a {@link GifDiskCache} is set, decodes are looked up there first and their complete results are written there.
+ *
+ * Every callback receives its own reference to the decoder and must {@link GifDecoder#release()} it when done. A
+ * decode all of whose callbacks have been cancelled is cancelled too.
+ */
+public class GifLoader {
+
+	static final String TAG = "GifLoader";
+
+	/** runs tasks on the calling thread */
+	public static final Executor DIRECT_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static GifLoader instance;
+
+	public interface Task {
+		/**
+		 * Decodes the source. Must not return a streaming decoder. The returned reference is owned by the loader.
+		 *
+		 * @param token
+		 *          cancelled once no callback waits for the result; to be set on the decoder
+		 * @param listener
+		 *          to be added to the decoder before reading, so that it can be delivered early
+		 */
+		@WorkerThread
+		GifDecoder decode(GifCancellationToken token, GifDecoder.FrameListener listener);
+	}
+
+	public interface Callback {
+		/**
+		 * @param decoder
+		 *          the decoded GIF with a reference owned by the callback, or null if decoding failed
+		 */
+		@UiThread
+		void onLoaded(GifDecoder decoder);
+	}
+
+	private final GifCache cache;
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
+	private final HashMap<String, Pending> pending = new HashMap<String, Pending>();
+
+	private static class Pending {
+		final ArrayList<Callback> callbacks = new ArrayList<Callback>();
+		final GifCancellationToken token = new GifCancellationToken();
+		GifDecoder published; // the decoder already handed to the callbacks while being read, if any
+	}
+
+	public static synchronized GifLoader getInstance() {
+		if (instance == null) {
+			instance = new GifLoader(GifCache.getInstance());
+		}
+		return instance;
+	}
+
+	public GifLoader(GifCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Gets the decoder for key. A cached decoder is delivered at once (synchronously when called on the UI thread).
+	 * Otherwise the callback joins a decode already running for key, or task is started on executor.
+	 */
+	@AnyThread
+	public void load(final String key, final Executor executor, final Task task, final Callback callback) {
+		final GifDecoder cached = cache.get(key);
+		if (cached != null) {
+			deliver(callback, cached);
+			return;
+		}
+		final Pending job;
+		synchronized (pending) {
+			final Pending joined = pending.get(key);
+			if (joined != null) {
+				Timber.tag(TAG).v("join decode. key:%s, waiting:%d", key, joined.callbacks.size());
+				joined.callbacks.add(callback);
+				if (joined.published != null) {
+					joined.published.acquire();
+					deliver(callback, joined.published);
+				}
+				return;
+			}
+			job = new Pending();
+			job.callbacks.add(callback);
+			pending.put(key, job);
+		}
+		final GifDecoder.FrameListener listener = new GifDecoder.FrameListener() {
+			private boolean posted;
+
+			@Override
+			public void onFramesDecoded(final GifDecoder decoder) {
+				if (posted || decoder.isComplete() || decoder.getDecodedFrameCount() == 0 || job.token.isCancelled()) {
+					return;
+				}
+				posted = true;
+				decoder.acquire(); // the reference of this post
+				uiHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						final ArrayList<Callback> callbacks;
+						synchronized (pending) {
+							job.published = decoder;
+							callbacks = new ArrayList<Callback>(job.callbacks);
+						}
+						for (int i = 0; i < callbacks.size(); i++) {
+							decoder.acquire();
+							callbacks.get(i).onLoaded(decoder);
+						}
+						decoder.release();
+					}
+				});
+			}
+		};
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				GifDecoder result = null;
+				final GifDiskCache diskCache = GifDiskCache.getInstance();
+				boolean fromDisk = false;
+				if (!job.token.isCancelled()) {
+					try {
+						if (diskCache != null) {
+							result = diskCache.get(key);
+							fromDisk = result != null;
+						}
+						if (result == null) {
+							result = task.decode(job.token, listener);
+						}
+						if (result != null) {
+							result.removeFrameListener(listener);
+						}
+						if (result != null && result.status == GifDecoder.STATUS_CANCELLED) {
+							Timber.tag(TAG).v("decode cancelled. key:%s", key);
+							result.release();
+							result = null;
+						} else if (result != null && result.status != GifDecoder.STATUS_OK) {
+							// delivered as far as it could be read, but not cached, so that a later load reads it again
+							Timber.tag(TAG).w("decode failed. key:%s, status:%d", key, result.status);
+						} else {
+							cache.put(key, result);
+						}
+					} catch (RuntimeException e) {
+						Timber.tag(TAG).e(e, "decode failed. key:%s", key);
+					}
+				}
+				final GifDecoder decoder = result;
+				final boolean store = decoder != null && decoder.status == GifDecoder.STATUS_OK && diskCache != null
+						&& !fromDisk;
+				if (store) {
+					decoder.acquire(); // kept while writing
+				}
+				uiHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						final ArrayList<Callback> callbacks;
+						synchronized (pending) {
+							if (pending.get(key) == job) {
+								pending.remove(key);
+							}
+							// empty if the decode was cancelled; already delivered if published
+							callbacks = job.published == null ? job.callbacks : new ArrayList<Callback>();
+						}
+						for (int i = 0; i < callbacks.size(); i++) {
+							if (decoder != null) {
+								decoder.acquire();
+							}
+							callbacks.get(i).onLoaded(decoder);
+						}
+						if (decoder != null) {
+							decoder.release(); // the reference of the task
+						}
+					}
+				});
+				if (store) {
+					// after delivering, so that showing the GIF does not wait for the write
+					diskCache.put(key, decoder);
+					decoder.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops waiting for key. The decode itself keeps running for the other callbacks, and is cancelled if there are
+	 * none left, which also ends the read of a decoder already handed out. A later load of key then starts a new
+	 * decode.
+	 */
+	@AnyThread
+	public void cancel(final String key, final Callback callback) {
+		if (key == null) {
+			return;
+		}
+		synchronized (pending) {
+			final Pending job = pending.get(key);
+			if (job != null && job.callbacks.remove(callback) && job.callbacks.isEmpty()) {
+				Timber.tag(TAG).v("cancel decode. key:%s", key);
+				pending.remove(key);
+				job.token.cancel();
+			}
+		}
+	}
+
+	private void deliver(final Callback callback, final GifDecoder decoder) {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			callback.onLoaded(decoder);
+		} else {
+			uiHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					callback.onLoaded(decoder);
+				}
+			});
+		}
+	}
+}
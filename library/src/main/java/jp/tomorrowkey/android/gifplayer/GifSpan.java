@@ -2,11 +2,12 @@ package jp.tomorrowkey.android.gifplayer;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.FontMetricsInt;
-import android.os.AsyncTask;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.Spanned;
 import android.text.style.ReplacementSpan;
@@ -16,8 +17,8 @@ import android.widget.TextView;
 
 import androidx.annotation.UiThread;
 
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
 
 import timber.log.Timber;
 
@@ -32,8 +33,7 @@ public class GifSpan extends ReplacementSpan {
 	static final int DECODE_STATUS_DECODING = 1;
 	static final int DECODE_STATUS_DECODED = 2;
 
-	/** Use if delay is negative */
-	static final int SAFE_DELAY_MS = 100;
+	static final Handler UI_HANDLER = new Handler(Looper.getMainLooper());
 
 	GifDecoder decoder;
 
@@ -45,9 +45,48 @@ public class GifSpan extends ReplacementSpan {
 	long length;
 
 	boolean playFlag = false;
+	boolean streaming = false;
+	Bitmap.Config config = null;
+	boolean downsample = false;
+	boolean indexed = false;
+	boolean delta = false;
+	Bitmap displayFrame; // indexedやdeltaのフレームの展開先
+	int displayIndex = -1; // displayFrameに展開済みのフレーム
+	int targetWidth;
+	int targetHeight;
+	final Rect frameRect = new Rect(); // フレームの描画先。scale前の座標
+	// 実行中のデコード。release()で中断する
+	String loadingKey;
+	GifLoader.Callback loadingCallback;
+	NewDecoderTask decoderTask;
+	final GifClock.Animation animation = new GifClock.Animation() {
+		@Override
+		public void onFrame(long now) {
+			// フレームの切り替わる時刻にだけ呼ばれる
+			invalidateView(0);
+		}
+	};
+	volatile boolean waitingFrame; // 読み込み中の次のフレームを待っている
+	final Runnable frameArrived = new Runnable() {
+		@Override
+		public void run() {
+			invalidateView(0);
+		}
+	};
+	final GifDecoder.FrameListener frameListener = new GifDecoder.FrameListener() {
+		@Override
+		public void onFramesDecoded(GifDecoder decoder) {
+			// worker threadから呼ばれる。streamingでは描画時になかったフレームのデコードが終わったとき
+			if (waitingFrame || decoder.isStreaming()) {
+				waitingFrame = false;
+				UI_HANDLER.post(frameArrived);
+			}
+		}
+	};
 
 	final WeakReference<TextView> viewRef;
 	final int resId;
+	final GifInfo info; // 読めなければnull
 	final int intrinsicWidth;
 	final int intrinsicHeight;
 	float scale;
@@ -58,11 +97,20 @@ public class GifSpan extends ReplacementSpan {
 		this.resId = resId;
 		this.scaleToTextSize = scaleToTextSize;
 
-		final BitmapFactory.Options opts = new BitmapFactory.Options();
-		opts.inJustDecodeBounds = true;
-		BitmapFactory.decodeResource(view.getResources(), resId, opts);
-		this.intrinsicWidth = opts.outWidth;
-		this.intrinsicHeight = opts.outHeight;
+		// 画素はデコードせずにヘッダと各フレームの遅延だけを読む
+		this.info = new GifDecoder().probe(resId > 0 ? GifView.openRawResource(view.getResources(), resId) : null);
+		this.intrinsicWidth = info != null ? info.getWidth() : 0;
+		this.intrinsicHeight = info != null ? info.getHeight() : 0;
+		this.length = info != null ? info.getDuration() : 0;
+	}
+
+	/**
+	 * デコードせずに読んだGIFの大きさ、フレーム数、再生時間を返す。
+	 *
+	 * @return 読めなかった場合はnull
+	 */
+	public GifInfo getInfo() {
+		return info;
 	}
 
 	@Override
@@ -118,49 +166,51 @@ public class GifSpan extends ReplacementSpan {
 			}
 		} else if (decodeStatus == DECODE_STATUS_DECODED) {
 			if (imageType == IMAGE_TYPE_DYNAMIC) {
-				if (decoder.frameCount <= 0) {
+				final int count = decoder.getDecodedFrameCount();
+				if (count <= 0) {
 					return;
 				}
 				canvas.save();
 				canvas.translate(x,
 						bottom - Math.round(intrinsicHeight * scale));
 				canvas.scale(scale, scale);
-				if (decoder.frameCount == 1) {
-					final Bitmap bitmap = decoder.getFrame(0);
+				if (count == 1 && decoder.isComplete()) {
+					final Bitmap bitmap = getFrame(0);
 					if (bitmap != null) {
-						canvas.drawBitmap(bitmap, 0, 0, null);
+						canvas.drawBitmap(bitmap, null, frameRect, null);
 					}
-				} else if (decoder.frameCount > 1) {
-					if (playFlag) {
-						final long now = System.currentTimeMillis();
-						long dt = (now - startTime) % length;
-						for (int i = 0; i < decoder.frameCount; i++) {
-							dt -= getSafeDelay(i);
-							if (dt <= 0) {
-								final Bitmap bitmap = decoder.getFrame(i);
-								if (bitmap != null) {
-									canvas.drawBitmap(bitmap, 0, 0, null);
-								}
-								if (dt == 0) {
-									invalidateView(getSafeDelay((i + 1) % decoder.frameCount));
-								} else {
-									invalidateView(-dt);
-								}
-								break;
-							}
+				} else {
+					long position = (playFlag ? GifClock.now() : pauseTime) - startTime;
+					// 読み込み済みのフレームの再生時間
+					final long decodedLength = decoder.getFrameStart(count);
+					final boolean waiting = !decoder.isComplete() && position >= decodedLength;
+					final int i;
+					if (waiting) {
+						// 読み込み中で続きのフレームがまだなければ、最後のフレームのまま待つ
+						i = count - 1;
+						if (playFlag) {
+							startTime += position - decodedLength;
+							position = decodedLength;
 						}
 					} else {
-						long dt = (pauseTime - startTime) % length;
-						for (int i = 0; i < decoder.frameCount; i++) {
-							dt -= getSafeDelay(i);
-							if (dt <= 0) {
-								final Bitmap bitmap = decoder.getFrame(i);
-								if (bitmap != null) {
-									canvas.drawBitmap(bitmap, 0, 0, null);
-								}
-								break;
-							}
+						// 再生開始からの経過時間で表示するフレームを二分探索する
+						i = decoder.getFrameIndexAt(position);
+					}
+					final Bitmap bitmap = getFrame(i);
+					if (bitmap != null) {
+						canvas.drawBitmap(bitmap, null, frameRect, null);
+					}
+					if (playFlag && waiting) {
+						// 次のフレームが読み込まれたら再描画する
+						waitingFrame = true;
+						if (decoder.getDecodedFrameCount() > count || decoder.isComplete()) {
+							waitingFrame = false;
+							invalidateView(0);
 						}
+					} else if (playFlag) {
+						// 次のフレームに切り替わる時刻に再描画する
+						final long loopPosition = position > 0 ? position % decoder.getDuration() : 0;
+						invalidateView(decoder.getFrameStart(i) + decoder.getSafeDelay(i) - loopPosition);
 					}
 				}
 				canvas.restore();
@@ -168,19 +218,109 @@ public class GifSpan extends ReplacementSpan {
 		}
 	}
 
-	private int getSafeDelay(final int n) {
-		final int delay = decoder.getDelay(n);
-		if (delay > 0) {
-			return delay;
-		} else {
-			return SAFE_DELAY_MS;
+	/**
+	 * indexedやdeltaのフレームはこのspan専用のbitmapに展開する。同じフレームは展開し直さない。
+	 */
+	private Bitmap getFrame(final int n) {
+		if (displayFrame == null && (decoder.isIndexed() || decoder.isDelta())) {
+			displayFrame = decoder.createDisplayBitmap();
+		}
+		if (n == displayIndex) {
+			return displayFrame;
 		}
+		final Bitmap frame = decoder.getFrame(n, displayFrame, displayIndex);
+		displayIndex = frame != null && frame == displayFrame ? n : -1;
+		return frame;
 	}
 
 	@UiThread
-	private void decode(Resources res) {
+	private void decode(final Resources res) {
 		decodeStatus = DECODE_STATUS_DECODING;
-		new NewDecoderTask(res).execute();
+		if (downsample && scale > 0) {
+			// 文字の大きさに合わせた表示サイズ
+			targetWidth = Math.round(intrinsicWidth * scale);
+			targetHeight = Math.round(intrinsicHeight * scale);
+		}
+		// 画面に見えている大きいものから、同程度なら後から要求されたものからデコードする
+		final TextView view = viewRef.get();
+		final int priority = GifDecodeScheduler.priorityOf(view != null && view.isShown(),
+				(long) Math.round(intrinsicWidth * scale) * Math.round(intrinsicHeight * scale));
+		if (streaming) {
+			// 再生位置を持つので他のspanと共有しない
+			decoderTask = new NewDecoderTask(res);
+			GifDecodeScheduler.getInstance().execute(decoderTask, priority);
+			return;
+		}
+		// キャッシュ済みなら即座に、同じGIFのデコードが実行中ならその完了時に呼ばれる
+		final Executor executor = GifDecodeScheduler.getInstance().executor(priority);
+		// 縮小率が同じなら、大きさの少し違うspanとも同じデコード結果を共有する
+		loadingKey = GifCache.keyOf(GifCache.keyOf(resId), config,
+				GifReader.sampleSizeOf(intrinsicWidth, intrinsicHeight, targetWidth, targetHeight));
+		loadingCallback = new GifLoader.Callback() {
+			@Override
+			public void onLoaded(GifDecoder decoder) {
+				if (loadingCallback != this) {
+					if (decoder != null) {
+						decoder.release();
+					}
+					return;
+				}
+				if (decoder == null || decoder.isComplete()) {
+					loadingCallback = null;
+				}
+				// 読み込み途中で受け取ったdecoderは、release()で読み込みを中断できるよう登録したままにする
+				setDecoder(decoder, GifClock.now());
+			}
+		};
+		GifLoader.getInstance().load(loadingKey, executor, new GifLoader.Task() {
+			@Override
+			public GifDecoder decode(GifCancellationToken token, GifDecoder.FrameListener listener) {
+				return newDecoder(res, false, token, listener);
+			}
+		}, loadingCallback);
+	}
+
+	private GifDecoder newDecoder(final Resources res, final boolean streaming, final GifCancellationToken token,
+			final GifDecoder.FrameListener listener) {
+		final GifDecoder newDecoder = new GifDecoder();
+		newDecoder.setStreaming(streaming);
+		newDecoder.setConfig(config);
+		newDecoder.setTargetSize(targetWidth, targetHeight);
+		newDecoder.setIndexed(indexed);
+		newDecoder.setDelta(delta);
+		newDecoder.setCancellationToken(token);
+		if (listener != null) {
+			newDecoder.addFrameListener(listener);
+		}
+		newDecoder.read(resId > 0 ? GifView.openRawResource(res, resId) : null);
+		return newDecoder;
+	}
+
+	@UiThread
+	private void setDecoder(final GifDecoder newDecoder, final long newTime) {
+		decoder = newDecoder;
+		if (newDecoder == null) {
+			imageType = IMAGE_TYPE_UNKNOWN;
+			decodeStatus = DECODE_STATUS_DECODED;
+			return;
+		}
+		if (newDecoder.width == 0 || newDecoder.height == 0) {
+			imageType = IMAGE_TYPE_UNKNOWN;
+		} else {
+			imageType = IMAGE_TYPE_DYNAMIC;
+			// 縮小されたフレームも元の大きさに描画する
+			frameRect.set(0, 0, newDecoder.width, newDecoder.height);
+		}
+		if (!newDecoder.isComplete() || newDecoder.isStreaming()) {
+			// 残りのフレームは読み込まれ次第再生する
+			newDecoder.addFrameListener(frameListener);
+		}
+		startTime = newTime;
+		decodeStatus = DECODE_STATUS_DECODED;
+		length = newDecoder.getDuration();
+		Timber.tag(TAG).v("Load completed. imageType:%s, frameCount:%d, length:%d",
+				imageType, newDecoder.getDecodedFrameCount(), length);
+		invalidateView(0);
 	}
 
 	private float getAutoScale(Resources res) {
@@ -198,19 +338,94 @@ public class GifSpan extends ReplacementSpan {
 		return 0;
 	}
 
+	/**
+	 * フレームを再生しながら逐次デコードする。デコード開始前に呼び出すこと。
+	 */
+	@UiThread
+	public void setStreaming(final boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * フレームのbitmapのconfigを指定する。nullなら透過のないフレームはRGB_565、透過のあるフレームはARGB_8888になる。
+	 * デコード開始前に呼び出すこと。
+	 */
+	@UiThread
+	public void setConfig(final Bitmap.Config config) {
+		this.config = config;
+	}
+
+	/**
+	 * 表示サイズに縮小してデコードする。文字の大きさで表示される大きなGIFのメモリ使用量と描画コストが減る。
+	 * デコード開始前に呼び出すこと。
+	 */
+	@UiThread
+	public void setDownsample(final boolean downsample) {
+		this.downsample = downsample;
+	}
+
+	/**
+	 * フレームを1画素1byteのパレット番号で保持し、表示するフレームだけをbitmapに展開する。
+	 * フレームのメモリ使用量が1/2から1/4になる。streamingでは無視される。
+	 * デコード開始前に呼び出すこと。
+	 */
+	@UiThread
+	public void setIndexed(final boolean indexed) {
+		this.indexed = indexed;
+	}
+
+	/**
+	 * 各フレームの前のフレームから変化した領域だけを保持し、再生時に表示用のbitmapへ順に重ねて組み立てる。
+	 * メモリ使用量がフレーム数ではなく変化する画素数に比例するようになる。streamingでは無視される。
+	 * デコード開始前に呼び出すこと。
+	 */
+	@UiThread
+	public void setDelta(final boolean delta) {
+		this.delta = delta;
+	}
+
+	/**
+	 * デコード済みのフレームを破棄する。spanをテキストから取り除くときに呼び出す。
+	 * 他のViewやspanが使っていなければbitmapはpoolに戻される。
+	 */
+	@UiThread
+	public void release() {
+		if (decoder != null) {
+			decoder.removeFrameListener(frameListener);
+			decoder.release();
+		}
+		decoder = null;
+		waitingFrame = false;
+		displayFrame = null;
+		displayIndex = -1;
+		UI_HANDLER.removeCallbacks(frameArrived);
+		decodeStatus = DECODE_STATUS_UNDECODE;
+		GifClock.getInstance().cancel(animation);
+		// 実行中のデコードは他に待っているものがなければ中断される
+		if (loadingCallback != null) {
+			GifLoader.getInstance().cancel(loadingKey, loadingCallback);
+			loadingCallback = null;
+		}
+		if (decoderTask != null) {
+			decoderTask.cancel();
+			decoderTask = null;
+		}
+	}
+
 	@UiThread
 	public void start() {
 		playFlag = true;
 		// すでに進んでいる分を考慮。
 		// ロードがまだ終わっていない場合、ロード時に startTime が改めて設定される
-		startTime = System.currentTimeMillis() - (pauseTime - startTime);
+		startTime = GifClock.now() - (pauseTime - startTime);
 		invalidateView(0);
 	}
 
 	@UiThread
 	public void pause() {
 		playFlag = false;
-		pauseTime = System.currentTimeMillis();
+		pauseTime = GifClock.now();
+		GifClock.getInstance().cancel(animation);
 		invalidateView(0);
 	}
 
@@ -230,55 +445,47 @@ public class GifSpan extends ReplacementSpan {
 		if (delay == 0) {
 			view.invalidate();
 		} else {
-			view.postInvalidateDelayed(delay);
+			// 全てのspanとViewで共有するclockで次のフレームの時刻に起こす
+			GifClock.getInstance().schedule(animation, GifClock.now() + delay);
 		}
 	}
 
-	private class NewDecoderTask extends AsyncTask<Void, Void, Void> {
+	private class NewDecoderTask implements Runnable {
 
 		private final Resources res;
-		private int newImageType;
-		private long newTime;
-		private GifDecoder newDecoder;
+		private final GifCancellationToken token = new GifCancellationToken();
 
 		NewDecoderTask(Resources res) {
 			this.res = res;
 		}
 
-		@Override
-		protected Void doInBackground(Void... params) {
-			newDecoder = new GifDecoder();
-			newDecoder.read(getInputStream());
-			if (newDecoder.width == 0 || newDecoder.height == 0) {
-				newImageType = IMAGE_TYPE_UNKNOWN;
-			} else {
-				newImageType = IMAGE_TYPE_DYNAMIC;
-			}
-			newTime = System.currentTimeMillis();
-			return null;
-		}
-
-		private InputStream getInputStream() {
-			if (resId > 0) {
-				return res.openRawResource(resId);
-			}
-			return null;
+		void cancel() {
+			token.cancel();
+			GifDecodeScheduler.getInstance().cancel(this);
 		}
 
 		@Override
-		protected void onPostExecute(Void aVoid) {
-			decoder = newDecoder;
-			imageType = newImageType;
-			startTime = newTime;
-			decodeStatus = DECODE_STATUS_DECODED;
-			long newLength = 0L;
-			for (int i = 0; i < newDecoder.frameCount; i++) {
-				newLength += getSafeDelay(i);
+		public void run() {
+			if (token.isCancelled()) {
+				return;
 			}
-			length = newLength;
-			Timber.tag(TAG).v("Load completed. imageType:%s, frameCount:%d, length:%d",
-					imageType, newDecoder.frameCount, length);
-			invalidateView(0);
+			final GifDecoder newDecoder = newDecoder(res, true, token, null);
+			if (token.isCancelled()) {
+				newDecoder.release();
+				return;
+			}
+			final long newTime = GifClock.now();
+			UI_HANDLER.post(new Runnable() {
+				@Override
+				public void run() {
+					if (decoderTask != NewDecoderTask.this) {
+						newDecoder.release();
+						return;
+					}
+					decoderTask = null;
+					setDecoder(newDecoder, newTime);
+				}
+			});
 		}
 	}
 }
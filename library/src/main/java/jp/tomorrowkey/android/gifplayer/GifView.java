@@ -1,14 +1,17 @@
 package jp.tomorrowkey.android.gifplayer;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.IOException;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
@@ -39,7 +42,7 @@ public class GifView extends View {
 	private int intrinsicHeight; // autoScale倍済み
 	private boolean fitCenter; // viewのサイズに合わせて拡大する
 
-	private long time;
+	private long time; // 表示中のフレームに切り替わった時刻。GifClock.now()の値
 	private int index;
 
 	/**
@@ -49,12 +52,42 @@ public class GifView extends View {
 	private int resId;
 	private String filePath;
 
-	private static Handler bgHandler;
 	private Handler uiHandler;
+	private final Rect visibleRect = new Rect();
 
 	private DecodeTask decodeTask;
+	private DecodeTask loadingTask; // 読み込み途中で受け取ったdecoderのtask。release()で読み込みを中断する
+	private boolean staticImage; // GIFとして読めない画像。BitmapFactoryでデコードする
+	private boolean posterOnly; // decoderは最初のフレームまで読んで止めたもの。再生時に続きを読む
+	private boolean posterResumed; // posterOnlyのdecoderの続きを読むtaskを作った。続きは一度しか読めない
 
 	private boolean playFlag = false;
+	private boolean streaming = false;
+	private Bitmap.Config config = null;
+	private boolean downsample = false;
+	private boolean indexed = false;
+	private boolean delta = false;
+	private Bitmap displayFrame; // indexedやdeltaのフレームの展開先
+	private int displayIndex = -1; // displayFrameに展開済みのフレーム
+	private final Rect frameRect = new Rect(); // フレームの描画先。autoScale前の座標
+	private final GifClock.Animation animation = new GifClock.Animation() {
+		@Override
+		public void onFrame(long now) {
+			// フレームの切り替わる時刻にだけ呼ばれる
+			invalidate();
+		}
+	};
+	private volatile boolean waitingFrame; // 読み込み中の次のフレームを待っている
+	private final GifDecoder.FrameListener frameListener = new GifDecoder.FrameListener() {
+		@Override
+		public void onFramesDecoded(GifDecoder decoder) {
+			// worker threadから呼ばれる。streamingでは描画時になかったフレームのデコードが終わったとき
+			if (waitingFrame || decoder.isStreaming()) {
+				waitingFrame = false;
+				postInvalidate();
+			}
+		}
+	};
 
 	public GifView(Context context, AttributeSet attrs) {
 		super(context, attrs);
@@ -67,21 +100,75 @@ public class GifView extends View {
 		super(context);
 	}
 
+	/**
+	 * @deprecated デコードは{@link GifDecodeScheduler}で実行されるため、handlerは使われない。
+	 *             スレッドを指定する場合は{@link GifDecodeScheduler#setInstance(GifDecodeScheduler)}を使う。
+	 */
+	@Deprecated
 	public static void setBgHandler(Handler bgHandler) {
-		GifView.bgHandler = bgHandler;
 	}
 
-	private InputStream getInputStream() {
-		if (filePath != null)
+	private GifSource getSource() {
+		if (filePath != null) {
 			try {
-				return new FileInputStream(filePath);
+				return GifSource.map(new File(filePath));
+			} catch (IOException e) {
+				Timber.tag(TAG).w(e, "failed to map %s", filePath);
+			}
+			try {
+				return GifSource.from(new FileInputStream(filePath));
 			} catch (FileNotFoundException e) {
 			}
+		}
 		if (resId > 0)
-			return getContext().getResources().openRawResource(resId);
+			return openRawResource(getContext().getResources(), resId);
 		return null;
 	}
 
+	private int getSampleSize(final int targetWidth, final int targetHeight) {
+		if (targetWidth > 0 && targetHeight > 0) {
+			final GifDecoder header = new GifDecoder();
+			if (header.readHeader(getSource()) == GifDecoder.STATUS_OK) {
+				return GifReader.sampleSizeOf(header.width, header.height, targetWidth, targetHeight);
+			}
+		}
+		return 1;
+	}
+
+	// 縮小率が同じなら、大きさの少し違うViewとも同じデコード結果を共有する
+	private String getCacheKey(final int sampleSize) {
+		if (filePath != null)
+			return GifCache.keyOf(GifCache.keyOf(new File(filePath)), config, sampleSize);
+		return GifCache.keyOf(GifCache.keyOf(resId), config, sampleSize);
+	}
+
+	/**
+	 * 無圧縮で格納されたraw resourceはapkをmemory mapして読む。圧縮されている場合はstreamで読む。
+	 */
+	static GifSource openRawResource(final Resources res, final int resId) {
+		try {
+			final AssetFileDescriptor afd = res.openRawResourceFd(resId);
+			if (afd != null) {
+				// 自分で開いたstreamのchannelからmapし、閉じる。mappingは閉じた後も有効
+				FileInputStream in = null;
+				try {
+					in = afd.createInputStream();
+					return GifSource.map(in.getChannel(), afd.getStartOffset(), afd.getLength());
+				} finally {
+					if (in != null) {
+						in.close();
+					}
+					afd.close();
+				}
+			}
+		} catch (Resources.NotFoundException e) {
+			// compressed resource
+		} catch (IOException e) {
+			Timber.tag(TAG).w(e, "failed to map resource %d", resId);
+		}
+		return GifSource.from(res.openRawResource(resId));
+	}
+
 	float getAutoScale() {
 		if (filePath != null) {
 			return 1.0f;
@@ -107,6 +194,10 @@ public class GifView extends View {
 	}
 
 	private void fitCenter(final Canvas canvas) {
+		if (intrinsicWidth <= 0 || intrinsicHeight <= 0) {
+			// 画像の大きさがまだ分からない
+			return;
+		}
 		final int coreWidth = getWidth() - getPaddingLeft() - getPaddingRight();
 		final int coreHeight = getHeight() - getPaddingTop()
 				- getPaddingBottom();
@@ -124,11 +215,13 @@ public class GifView extends View {
 	/**
 	 * set gif file path
 	 * 
+	 * 描画時には最初のフレームだけがバックグラウンドでデコードされる。全体はplay()でデコードされる。
+	 * GIFでない画像はBitmapFactoryでデコードされ、静止画として表示される。
+	 * 
 	 * @param filePath
 	 */
 	public void setGif(String filePath) {
-		Bitmap bitmap = BitmapFactory.decodeFile(filePath);
-		setGif(filePath, bitmap);
+		setGif(filePath, null);
 	}
 
 	/**
@@ -136,16 +229,110 @@ public class GifView extends View {
 	 * 
 	 * @param filePath
 	 * @param cacheImage
+	 *          デコードが終わるまで表示する画像。nullなら最初のフレームを表示する
 	 */
 	public void setGif(String filePath, Bitmap cacheImage) {
+		cancelDecode();
 		this.resId = 0;
 		this.filePath = filePath;
+		playFlag = false;
+		setCacheImage(cacheImage);
+		invalidate();
+	}
+
+	/**
+	 * 前のGIFのデコードを中断してフレームを破棄する。中断したデコードの結果は表示されない
+	 */
+	private void cancelDecode() {
+		if (decodeTask != null) {
+			decodeTask.cancel();
+			decodeTask = null;
+		}
+		release();
+		GifClock.getInstance().cancel(animation);
 		imageType = IMAGE_TYPE_UNKNOWN;
 		decodeStatus = DECODE_STATUS_UNDECODE;
-		playFlag = false;
+	}
+
+	private void setCacheImage(final Bitmap cacheImage) {
 		bitmap = cacheImage;
-		intrinsicWidth = bitmap.getWidth();
-		intrinsicHeight = bitmap.getHeight();
+		staticImage = false;
+		posterOnly = false;
+		if (cacheImage == null && isInEditMode()) {
+			// layout ファイルのプレビューではworker threadを使わずに最初のフレームを表示する
+			bitmap = decodeStaticImage();
+		}
+		if (bitmap != null) {
+			intrinsicWidth = bitmap.getWidth();
+			intrinsicHeight = bitmap.getHeight();
+			return;
+		}
+		// UI threadでは画素をデコードせず、ヘッダだけを読んで大きさを決める
+		final GifDecoder header = new GifDecoder();
+		if (header.readHeader(getSource()) != GifDecoder.STATUS_OK || header.width == 0 || header.height == 0) {
+			// PNGやJPEGなどGIFでない画像はworker threadでBitmapFactoryでデコードする。大きさはデコードまで0
+			staticImage = true;
+			intrinsicWidth = 0;
+			intrinsicHeight = 0;
+			if (getHandler() != null) {
+				// 大きさ0のViewは描画されないことがあるので、描画を待たずにデコードする
+				decode();
+			}
+			return;
+		}
+		final float scale = getAutoScale();
+		intrinsicWidth = (int) (header.width * scale + 0.5f);
+		intrinsicHeight = (int) (header.height * scale + 0.5f);
+	}
+
+	private Bitmap decodeStaticImage() {
+		if (filePath != null)
+			return BitmapFactory.decodeFile(filePath);
+		if (resId > 0)
+			return BitmapFactory.decodeResource(getContext().getResources(), resId);
+		return null;
+	}
+
+	/**
+	 * フレームを再生しながら逐次デコードする。メモリ使用量がフレーム数に依存しなくなる。
+	 * 次回のデコードから有効。
+	 */
+	public void setStreaming(final boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * フレームのbitmapのconfigを指定する。nullなら透過のないフレームはRGB_565、透過のあるフレームはARGB_8888になる。
+	 * 次回のデコードから有効。
+	 */
+	public void setConfig(final Bitmap.Config config) {
+		this.config = config;
+	}
+
+	/**
+	 * 表示サイズに縮小してデコードする。縮小して表示される大きなGIFのメモリ使用量と描画コストが減る。
+	 * 次回のデコードから有効。
+	 */
+	public void setDownsample(final boolean downsample) {
+		this.downsample = downsample;
+	}
+
+	/**
+	 * フレームを1画素1byteのパレット番号で保持し、表示するフレームだけをbitmapに展開する。
+	 * フレームのメモリ使用量が1/2から1/4になる。streamingでは無視される。
+	 * 次回のデコードから有効。
+	 */
+	public void setIndexed(final boolean indexed) {
+		this.indexed = indexed;
+	}
+
+	/**
+	 * 各フレームの前のフレームから変化した領域だけを保持し、再生時に表示用のbitmapへ順に重ねて組み立てる。
+	 * メモリ使用量がフレーム数ではなく変化する画素数に比例するようになる。streamingでは無視される。
+	 * 次回のデコードから有効。
+	 */
+	public void setDelta(final boolean delta) {
+		this.delta = delta;
 	}
 
 	/**
@@ -158,11 +345,13 @@ public class GifView extends View {
 	/**
 	 * set gif resource id
 	 * 
+	 * 描画時には最初のフレームだけがバックグラウンドでデコードされる。全体はplay()でデコードされる。
+	 * GIFでない画像はBitmapFactoryでデコードされ、静止画として表示される。
+	 * 
 	 * @param resId
 	 */
 	public void setGif(int resId) {
-		Bitmap bitmap = BitmapFactory.decodeResource(getResources(), resId);
-		setGif(resId, bitmap);
+		setGif(resId, null);
 	}
 
 	/**
@@ -170,16 +359,15 @@ public class GifView extends View {
 	 * 
 	 * @param resId
 	 * @param cacheImage
+	 *          デコードが終わるまで表示する画像。nullなら最初のフレームを表示する
 	 */
 	public void setGif(int resId, Bitmap cacheImage) {
+		cancelDecode();
 		this.filePath = null;
 		this.resId = resId;
-		imageType = IMAGE_TYPE_UNKNOWN;
-		decodeStatus = DECODE_STATUS_UNDECODE;
 		playFlag = false;
-		bitmap = cacheImage;
-		intrinsicWidth = bitmap.getWidth();
-		intrinsicHeight = bitmap.getHeight();
+		setCacheImage(cacheImage);
+		invalidate();
 
 		Timber.tag(TAG).d("gif set. intrinsicWidth:%d, intrinsicHeight:%d",
 				intrinsicWidth, intrinsicHeight);
@@ -187,69 +375,292 @@ public class GifView extends View {
 
 	// attachされていない状態では呼び出せない
 	private void decode() {
-		release();
+		if (!posterOnly) {
+			// 最初のフレームだけのdecoderは、全体のデコードが終わるまで表示し続ける
+			release();
+		}
 		index = 0;
 
 		uiHandler = getHandler();
 		decodeStatus = DECODE_STATUS_DECODING;
 		if (decodeTask != null) {
-			bgHandler.removeCallbacks(decodeTask);
-			uiHandler.removeCallbacks(decodeTask);
+			decodeTask.cancel();
 		}
 		decodeTask = new DecodeTask(resId);
-		bgHandler.post(decodeTask);
+		decodeTask.staticImage = staticImage;
+		// 再生しないなら最初のフレームだけを読む。streamingはもともと表示するフレームしかデコードしない
+		decodeTask.poster = !playFlag && !streaming;
+		if (posterOnly && !posterResumed && playFlag && !streaming && decoder.isPaused()
+				&& decoder.getConfig() == config && decoder.isIndexed() == indexed && decoder.isDelta() == delta) {
+			// 最初のフレームまで読んだdecoderの続きを読む。最初のフレームは読み直さない
+			decoder.acquire();
+			decodeTask.resumed = decoder;
+			posterResumed = true;
+		}
+		if (downsample && intrinsicWidth > 0 && intrinsicHeight > 0) {
+			// 画面上の大きさ。intrinsicサイズはautoScale倍済みなのでfitCenterの拡縮だけ掛ける
+			float scale = 1;
+			final int coreWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+			final int coreHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+			if (fitCenter && coreWidth > 0 && coreHeight > 0) {
+				scale = Math.min(((float) coreWidth) / intrinsicWidth, ((float) coreHeight) / intrinsicHeight);
+			}
+			decodeTask.targetWidth = Math.round(intrinsicWidth * scale);
+			decodeTask.targetHeight = Math.round(intrinsicHeight * scale);
+		}
+		// 画面に見えている大きいものから、同程度なら後から要求されたものからデコードする
+		final boolean visible = isShown() && getGlobalVisibleRect(visibleRect);
+		final long area = visible ? (long) visibleRect.width() * visibleRect.height() : 0;
+		GifDecodeScheduler.getInstance().execute(decodeTask, GifDecodeScheduler.priorityOf(visible, area));
+	}
+
+	private GifDecoder newDecoder(final boolean streaming, final boolean firstFrame, final int targetWidth,
+			final int targetHeight, final GifCancellationToken token, final GifDecoder.FrameListener listener) {
+		final GifDecoder decoder = new GifDecoder();
+		decoder.setStreaming(streaming);
+		decoder.setConfig(config);
+		decoder.setTargetSize(targetWidth, targetHeight);
+		decoder.setIndexed(indexed);
+		decoder.setDelta(delta);
+		decoder.setCancellationToken(token);
+		if (listener != null) {
+			decoder.addFrameListener(listener);
+		}
+		if (firstFrame) {
+			decoder.readFirstFrame(getSource());
+		} else {
+			decoder.read(getSource());
+		}
+		return decoder;
 	}
 
-	private class DecodeTask implements Runnable {
+	private class DecodeTask implements Runnable, GifLoader.Callback {
 
 		private final int resId;
+		private int targetWidth;
+		private int targetHeight;
 		private float autoScale;
-		private GifDecoder decoder;
-		private int imageType;
-		private long time;
-		private int decodeStatus;
+		private boolean staticImage;
+		private boolean poster;
+		private GifDecoder resumed; // 続きを読むdecoderへのこのtaskの参照。takeResumed()で取り出す
+		private volatile String key;
+		private final GifCancellationToken token = new GifCancellationToken();
 
 		public DecodeTask(final int resId) {
 			this.resId = resId;
 		}
 
+		/**
+		 * 開始前なら実行しない。実行中のデコードは他に待っているViewがなければ中断される。
+		 */
+		void cancel() {
+			token.cancel();
+			GifDecodeScheduler.getInstance().cancel(this);
+			GifLoader.getInstance().cancel(key, this);
+			final GifDecoder decoder = takeResumed();
+			if (decoder != null) {
+				decoder.release();
+			}
+		}
+
+		private synchronized GifDecoder takeResumed() {
+			final GifDecoder decoder = resumed;
+			resumed = null;
+			return decoder;
+		}
+
 		@Override
 		public void run() {
-			if (Thread.currentThread() != uiHandler.getLooper().getThread()) {
-				// worker threadでのデコード
-				autoScale = getAutoScale();
-				decoder = new GifDecoder();
-				decoder.read(getInputStream());
-				if (decoder.width == 0 || decoder.height == 0) {
-					imageType = IMAGE_TYPE_STATIC;
-				} else {
-					imageType = IMAGE_TYPE_DYNAMIC;
+			// worker threadでのデコード
+			if (token.isCancelled()) {
+				return;
+			}
+			autoScale = getAutoScale();
+			if (staticImage) {
+				final Bitmap image = decodeStaticImage();
+				if (token.isCancelled()) {
+					return;
 				}
-				time = System.currentTimeMillis();
-				decodeStatus = DECODE_STATUS_DECODED;
-				uiHandler.post(this);
-			} else {
-				// ui threadでのフィールドへのデータの適用
-				if (decodeTask != this) {
+				uiHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onStaticLoaded(image);
+					}
+				});
+				return;
+			}
+			if (poster) {
+				// 最初のフレームを読んだ時点で止める。読み込みの状態は再生時に続きを読むために残す。キャッシュには入れない
+				final GifDecoder decoder = newDecoder(false, true, targetWidth, targetHeight, token, null);
+				if (token.isCancelled()) {
+					decoder.release();
 					return;
 				}
+				uiHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onLoaded(decoder);
+					}
+				});
+				return;
+			}
+			if (streaming) {
+				// 再生位置を持つので他のViewと共有しない
+				final GifDecoder decoder = newDecoder(true, false, targetWidth, targetHeight, token, null);
+				if (token.isCancelled()) {
+					decoder.release();
+					return;
+				}
+				uiHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onLoaded(decoder);
+					}
+				});
+				return;
+			}
+			GifDecoder decoder = takeResumed();
+			if (decoder != null && decoder.getSampleSize() != GifReader.sampleSizeOf(decoder.width, decoder.height,
+					targetWidth, targetHeight)) {
+				// 最初のフレームを読んだ後に表示サイズが変わった
+				decoder.release();
+				decoder = null;
+			}
+			final int sampleSize = decoder != null ? decoder.getSampleSize() : getSampleSize(targetWidth, targetHeight);
+			key = getCacheKey(sampleSize);
+			if (token.isCancelled()) {
+				if (decoder != null) {
+					decoder.release();
+				}
+				return;
+			}
+			final GifDecoder paused = decoder;
+			final boolean[] adopted = new boolean[1];
+			// 同じGIFのデコードが実行中ならその結果を待つ。最初のフレームができた時点で受け取る
+			GifLoader.getInstance().load(key, GifLoader.DIRECT_EXECUTOR, new GifLoader.Task() {
+				@Override
+				public GifDecoder decode(GifCancellationToken loaderToken, GifDecoder.FrameListener listener) {
+					if (paused == null) {
+						return newDecoder(false, false, targetWidth, targetHeight, loaderToken, listener);
+					}
+					// このtaskの参照ごとloaderに引き継ぎ、2番目のフレームから読む
+					adopted[0] = true;
+					paused.setCancellationToken(loaderToken);
+					paused.addFrameListener(listener);
+					paused.resume();
+					return paused;
+				}
+			}, this);
+			if (paused != null && !adopted[0]) {
+				// キャッシュ済みか、実行中のデコードに合流した
+				paused.release();
+			}
+		}
 
-				decodeTask = null;
-				GifView.this.resId = this.resId;
-				GifView.this.autoScale = this.autoScale;
-				GifView.this.decoder = this.decoder;
-				GifView.this.imageType = this.imageType;
-				GifView.this.time = this.time;
-				GifView.this.decodeStatus = this.decodeStatus;
-				invalidate();
+		@Override
+		public void onLoaded(final GifDecoder decoder) {
+			// ui threadでのフィールドへのデータの適用
+			if (decodeTask != this) {
+				if (decoder != null) {
+					decoder.release();
+				}
+				return;
 			}
 
+			decodeTask = null;
+			// 表示し続けていた最初のフレームだけのdecoderを置き換える
+			release();
+			if (key != null && decoder != null && !decoder.isComplete()) {
+				// 残りの読み込みが終わるまでloaderに登録したままにする
+				loadingTask = this;
+			}
+			GifView.this.resId = this.resId;
+			GifView.this.autoScale = this.autoScale;
+			GifView.this.decoder = decoder;
+			posterOnly = poster && decoder != null;
+			if (decoder == null || decoder.width == 0 || decoder.height == 0
+					|| (decoder.isComplete() && decoder.getDecodedFrameCount() == 0)) {
+				// 1フレームも読めなかったGIFは再生しない
+				imageType = IMAGE_TYPE_STATIC;
+			} else {
+				imageType = IMAGE_TYPE_DYNAMIC;
+				// 縮小されたフレームも元の大きさに描画する
+				frameRect.set(0, 0, decoder.width, decoder.height);
+				if ((!decoder.isComplete() && !decoder.isPaused()) || decoder.isStreaming()) {
+					// 残りのフレームは読み込まれ次第再生する
+					decoder.addFrameListener(frameListener);
+				}
+			}
+			time = GifClock.now();
+			decodeStatus = DECODE_STATUS_DECODED;
+			invalidate();
+		}
+
+		private void onStaticLoaded(final Bitmap image) {
+			// ui threadでのフィールドへのデータの適用
+			if (decodeTask != this) {
+				return;
+			}
+
+			decodeTask = null;
+			bitmap = image;
+			if (image != null) {
+				intrinsicWidth = image.getWidth();
+				intrinsicHeight = image.getHeight();
+			}
+			imageType = IMAGE_TYPE_STATIC;
+			decodeStatus = DECODE_STATUS_DECODED;
+			requestLayout();
+			invalidate();
 		}
 
 	}
 
+	/**
+	 * デコード済みのフレームを破棄する。他のViewやspanが使っていなければbitmapはpoolに戻される。
+	 */
 	public void release() {
+		if (decoder != null) {
+			decoder.removeFrameListener(frameListener);
+			decoder.release();
+		}
 		decoder = null;
+		if (loadingTask != null) {
+			// 読み込み中のデコードは他に待っているものがなければ中断される
+			loadingTask.cancel();
+			loadingTask = null;
+		}
+		posterOnly = false;
+		posterResumed = false;
+		waitingFrame = false;
+		displayFrame = null;
+		displayIndex = -1;
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if (staticImage && decodeStatus == DECODE_STATUS_UNDECODE && !isInEditMode()) {
+			// 大きさ0のViewは描画されないことがあるので、attachされたらすぐにデコードする
+			decode();
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		GifClock.getInstance().cancel(animation);
+		if (decodeTask != null) {
+			// 画面から外れたViewのデコードは中断し、再びattachされて描画されるときにやり直す
+			decodeTask.cancel();
+			decodeTask = null;
+			decodeStatus = DECODE_STATUS_UNDECODE;
+		}
+		if (loadingTask != null) {
+			// 読み込み途中のdecoderは読み込みを中断して破棄し、再びattachされたらデコードし直す
+			release();
+			decodeStatus = DECODE_STATUS_UNDECODE;
+		}
 	}
 
 	@Override
@@ -261,7 +672,7 @@ public class GifView extends View {
 		final int paddingWidth = getPaddingLeft() + getPaddingRight();
 		final int paddingHeight = getPaddingTop() + getPaddingBottom();
 
-		if (fitCenter) {
+		if (fitCenter && intrinsicWidth > 0 && intrinsicHeight > 0) {
 			if (widthMode == MeasureSpec.UNSPECIFIED
 					&& heightMode == MeasureSpec.UNSPECIFIED) {
 				setMeasuredDimension(this.intrinsicWidth + paddingWidth,
@@ -316,46 +727,102 @@ public class GifView extends View {
             if (bitmap != null) {
                 // layout ファイルのプレビューでエラーが出ないようにしている。
                 canvas.drawBitmap(bitmap, 0, 0, null);
-            }
-			if (playFlag) {
+            } else if (posterOnly) {
+				// 再生のために全体をデコードし直すまで、読み込み済みの最初のフレームを表示する
+				drawPoster(canvas);
+			}
+			// 画像がなければ最初のフレームだけをデコードして表示する
+			final boolean poster = bitmap == null && (resId > 0 || filePath != null) && !isInEditMode();
+			if (playFlag || poster) {
 				decode();
 				invalidate();
 			}
 		} else if (decodeStatus == DECODE_STATUS_DECODING) {
-			canvas.drawBitmap(bitmap, 0, 0, null);
-			invalidate();
+			// 最初のフレームのデコード完了時に再描画される
+			if (bitmap != null) {
+				canvas.drawBitmap(bitmap, 0, 0, null);
+			} else if (posterOnly) {
+				drawPoster(canvas);
+			}
 		} else if (decodeStatus == DECODE_STATUS_DECODED) {
 			if (imageType == IMAGE_TYPE_STATIC) {
-				canvas.drawBitmap(bitmap, 0, 0, null);
+				if (bitmap != null) {
+					canvas.drawBitmap(bitmap, 0, 0, null);
+				}
 			} else if (imageType == IMAGE_TYPE_DYNAMIC) {
 				canvas.scale(autoScale, autoScale);
 				if (playFlag) {
-					long now = System.currentTimeMillis();
-					
-					if (time + decoder.getDelay(index) < now) {
-						// TODO indexを一つインクリメントするだけではなく、正しい位置までindexを増やすようにする
-						time = now;
-						incrementFrameIndex();
+					final long now = GifClock.now();
+					if (decoder.getDecodedFrameCount() > 0 && time + decoder.getSafeDelay(index) <= now) {
+						if (decoder.isComplete()) {
+							// 描画が遅れても再生位置がずれないよう、現在時刻のフレームまで進める
+							final long position = decoder.getFrameStart(index) + (now - time);
+							index = decoder.getFrameIndexAt(position);
+							time = now - (position % decoder.getDuration() - decoder.getFrameStart(index));
+						} else {
+							// 読み込み中は読み込み済みのフレームまでしか進めない
+							while (time + decoder.getSafeDelay(index) <= now
+									&& index + 1 < decoder.getDecodedFrameCount()) {
+								time += decoder.getSafeDelay(index);
+								index++;
+							}
+						}
 					}
-					Bitmap bitmap = decoder.getFrame(index);
+					Bitmap bitmap = getFrame(index);
 					if (bitmap != null) {
-						canvas.drawBitmap(bitmap, 0, 0, null);
+						canvas.drawBitmap(bitmap, null, frameRect, null);
+					}
+					if (!decoder.isComplete() && time + decoder.getSafeDelay(index) <= now) {
+						// 次のフレームが読み込まれるまで今のフレームを表示し続け、読み込まれたら再描画する
+						time = now - decoder.getSafeDelay(index);
+						waitingFrame = true;
+						if (index + 1 < decoder.getDecodedFrameCount() || decoder.isComplete()) {
+							waitingFrame = false;
+							invalidate();
+						}
+					} else if (time + decoder.getSafeDelay(index) > now) {
+						// 毎フレーム再描画せず、次のフレームの時刻に起こしてもらう
+						GifClock.getInstance().schedule(animation, time + decoder.getSafeDelay(index));
 					}
-					invalidate();
 				} else {
-					Bitmap bitmap = decoder.getFrame(index);
-					canvas.drawBitmap(bitmap, 0, 0, null);
+					Bitmap bitmap = getFrame(index);
+					if (bitmap != null) {
+						canvas.drawBitmap(bitmap, null, frameRect, null);
+					}
 				}
-			} else {
+			} else if (bitmap != null) {
 				canvas.drawBitmap(bitmap, 0, 0, null);
 			}
 		}
 		canvas.restore();
 	}
 
+	private void drawPoster(final Canvas canvas) {
+		canvas.scale(autoScale, autoScale);
+		final Bitmap frame = getFrame(0);
+		if (frame != null) {
+			canvas.drawBitmap(frame, null, frameRect, null);
+		}
+	}
+
+	/**
+	 * indexedやdeltaのフレームはこのView専用のbitmapに展開する。同じフレームは展開し直さない。
+	 */
+	private Bitmap getFrame(final int n) {
+		if (displayFrame == null && (decoder.isIndexed() || decoder.isDelta())) {
+			displayFrame = decoder.createDisplayBitmap();
+		}
+		if (n == displayIndex) {
+			return displayFrame;
+		}
+		final Bitmap frame = decoder.getFrame(n, displayFrame, displayIndex);
+		displayIndex = frame != null && frame == displayFrame ? n : -1;
+		return frame;
+	}
+
 	private void incrementFrameIndex() {
 		index++;
-		if (index >= decoder.getFrameCount()) {
+		if (index >= decoder.getDecodedFrameCount()) {
 			index = 0;
 		}
 	}
@@ -363,24 +830,30 @@ public class GifView extends View {
 	private void decrementFrameIndex() {
 		index--;
 		if (index < 0) {
-			index = decoder.getFrameCount() - 1;
+			index = decoder.getDecodedFrameCount() - 1;
 		}
 	}
 
 	public void play() {
-		time = System.currentTimeMillis();
+		if (posterOnly && decodeStatus == DECODE_STATUS_DECODED) {
+			// 最初のフレームだけを読んだdecoderを、全体をデコードしたものに置き換える
+			decodeStatus = DECODE_STATUS_UNDECODE;
+		}
+		time = GifClock.now();
 		playFlag = true;
 		invalidate();
 	}
 
 	public void pause() {
 		playFlag = false;
+		GifClock.getInstance().cancel(animation);
 		invalidate();
 	}
 
 	public void stop() {
 		playFlag = false;
 		index = 0;
+		GifClock.getInstance().cancel(animation);
 		invalidate();
 	}
 